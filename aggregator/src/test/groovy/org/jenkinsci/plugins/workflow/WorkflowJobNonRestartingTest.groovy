@@ -82,7 +82,9 @@ public class WorkflowJobNonRestartingTest extends AbstractCpsFlowTest {
         // whose parent is BlockEndNode for body invocation, whose parent is AtomNode
         AtomNode atom = e.currentHeads[0].parents[0].parents[0].parents[0]
         LogActionImpl la = atom.getAction(LogAction)
-        assert la.logFile.text.contains("hello world")
+        def w = new StringWriter()
+        la.logText.writeLogTo(0, w)
+        assert w.toString().contains("hello world")
     }
 
     /**
@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow;
+
+import hudson.model.queue.QueueTaskFuture;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowGraphWalker;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.storage.FlowNodeCache;
+import org.jenkinsci.plugins.workflow.support.storage.SimpleXStreamFlowNodeStorage;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Measures the hot paths of running a workflow, to catch performance regressions.
+ *
+ * <p>
+ * Skipped unless run with {@code -Pbenchmarks}, which sets {@code workflow.benchmarks}.
+ * Results are written as JSON to {@code target/benchmarks.json}, or wherever {@code workflow.benchmarks.output} says.
+ */
+public class BenchmarkTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    private static final JSONArray results = new JSONArray();
+
+    @Before public void enabled() {
+        Assume.assumeTrue(Boolean.getBoolean("workflow.benchmarks"));
+    }
+
+    /**
+     * Throughput of synchronous steps dispatched through the DSL.
+     */
+    @Test public void synchronousSteps() throws Exception {
+        for (int steps : new int[] {100, 1000, 10000}) {
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "sync" + steps);
+            p.setDefinition(new CpsFlowDefinition("for (int i = 0; i < " + steps + "; i++) {echo 'hello'}"));
+            r.assertBuildStatusSuccess(p.scheduleBuild2(0)); // warm up
+            long start = System.nanoTime();
+            r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+            record("synchronousSteps", steps, System.nanoTime() - start, steps);
+        }
+    }
+
+    /**
+     * Time the program is held up by saving its state, depending on how much state there is.
+     */
+    @Test public void saveProgram() throws Exception {
+        final int rounds = 20;
+        for (int size : new int[] {100, 1000, 10000}) {
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "save" + size);
+            p.setDefinition(new CpsFlowDefinition(
+                    "def data = []; for (int i = 0; i < " + size + "; i++) {data.add('item' + i)}\n"
+                    + "for (int i = 0; i < " + rounds + "; i++) {semaphore 'save" + size + "'}"));
+            QueueTaskFuture<WorkflowRun> f = p.scheduleBuild2(0);
+            WorkflowRun b = f.waitForStart();
+            CpsFlowExecution e = (CpsFlowExecution) b.getExecutionPromise().get();
+            e.waitForSuspension();
+            int saved = e.getCheckpointsSaved();
+            long nanos = e.getCheckpointNanos();
+            for (int i = 1; i <= rounds; i++) {
+                SemaphoreStep.success("save" + size + "/" + i, null);
+                e.waitForSuspension();
+            }
+            saved = e.getCheckpointsSaved() - saved;
+            Assert.assertTrue("program state was never saved", saved > 0);
+            record("saveProgram", size, e.getCheckpointNanos() - nanos, saved);
+            r.assertBuildStatusSuccess(f);
+        }
+    }
+
+    /**
+     * Cost of starting and joining parallel branches.
+     */
+    @Test public void parallelFanOut() throws Exception {
+        for (int branches : new int[] {10, 100, 500}) {
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "parallel" + branches);
+            p.setDefinition(new CpsFlowDefinition(
+                    "def branches = [:]; for (int i = 0; i < " + branches + "; i++) {def x = i; branches['b' + x] = {echo \"branch ${x}\"}}\n"
+                    + "parallel branches"));
+            r.assertBuildStatusSuccess(p.scheduleBuild2(0)); // warm up
+            long start = System.nanoTime();
+            r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+            record("parallelFanOut", branches, System.nanoTime() - start, branches);
+        }
+    }
+
+    /**
+     * Rates at which {@link SimpleXStreamFlowNodeStorage} stores and loads the nodes of a real flow graph.
+     */
+    @Test public void flowNodeStorage() throws Exception {
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "storage");
+        p.setDefinition(new CpsFlowDefinition("for (int i = 0; i < 1000; i++) {echo 'hello'}"));
+        WorkflowRun b = r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        List<FlowNode> nodes = new ArrayList<FlowNode>();
+        FlowGraphWalker walker = new FlowGraphWalker(b.getExecution());
+        FlowNode n;
+        while ((n = walker.next()) != null) {
+            nodes.add(n);
+        }
+
+        File dir = new File(r.jenkins.getRootDir(), "storage-benchmark");
+        try {
+            SimpleXStreamFlowNodeStorage s = new SimpleXStreamFlowNodeStorage(b.getExecution(), dir);
+            long start = System.nanoTime();
+            for (FlowNode node : nodes) {
+                s.storeNode(node);
+            }
+            record("flowNodeStorage.store", nodes.size(), System.nanoTime() - start, nodes.size());
+
+            // oldest first, so that every node is read from disk exactly once, and its parents come from the cache
+            Collections.reverse(nodes);
+            FlowNodeCache.get().invalidate(dir);
+            s = new SimpleXStreamFlowNodeStorage(b.getExecution(), dir);
+            start = System.nanoTime();
+            for (FlowNode node : nodes) {
+                s.getNode(node.getId());
+            }
+            record("flowNodeStorage.load", nodes.size(), System.nanoTime() - start, nodes.size());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Records the nanoseconds {@code elapsed} for {@code ops} operations.
+     */
+    private static void record(String name, int param, long elapsed, int ops) {
+        JSONObject o = new JSONObject();
+        o.put("benchmark", name);
+        o.put("param", param);
+        o.put("ops", ops);
+        o.put("totalMillis", elapsed / 1000000.0);
+        o.put("microsPerOp", elapsed / 1000.0 / ops);
+        o.put("opsPerSecond", ops * 1000000000.0 / elapsed);
+        LOGGER.info(o.toString());
+        synchronized (results) {
+            results.add(o);
+        }
+    }
+
+    @AfterClass public static void publish() throws Exception {
+        synchronized (results) {
+            if (results.isEmpty()) {
+                return;
+            }
+            File f = new File(System.getProperty("workflow.benchmarks.output", "target/benchmarks.json"));
+            FileUtils.writeStringToFile(f, results.toString(2));
+            LOGGER.info("Wrote " + f.getAbsolutePath());
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BenchmarkTest.class.getName());
+
+}
@@ -55,4 +55,26 @@ public class DSLTest {
         // TODO test structured values using @DataBoundConstructor/@DataBoundSetter via AbstractStepDescriptorImpl.instantiate (probably need a dedicated test step for that)
     }
 
+    /**
+     * Builds of the same script share its compiled form, but not the static state of the classes it declares.
+     */
+    @Test public void staticStateNotShared() throws Exception {
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("class Counter {static int count}\nCounter.count = Counter.count + 1\necho \"count=${Counter.count}\""));
+        r.assertLogContains("count=1", r.assertBuildStatusSuccess(p.scheduleBuild2(0)));
+        r.assertLogContains("count=1", r.assertBuildStatusSuccess(p.scheduleBuild2(0)));
+    }
+
+    /**
+     * A branch that keeps running without ever waiting for a step has to let the others run too.
+     */
+    @Test public void spinningBranchDoesNotStarveOthers() throws Exception {
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "@NonCPS def sum(n) {int s = 0; for (int i = 0; i < n; i++) {s += i}; s}\n" +
+                "done = false\n" +
+                "parallel(spin: {while (!done) {}}, work: {echo \"other branch ran, sum=${sum(10)}\"; done = true})"));
+        r.assertLogContains("other branch ran, sum=45", r.assertBuildStatusSuccess(p.scheduleBuild2(0)));
+    }
+
 }
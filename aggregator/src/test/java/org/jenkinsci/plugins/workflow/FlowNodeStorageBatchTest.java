@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jesse Glick.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow;
+
+import hudson.model.Action;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowGraphWalker;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.storage.FlowNodeStorage;
+import org.jenkinsci.plugins.workflow.support.storage.SegmentedFlowNodeStorage;
+import org.jenkinsci.plugins.workflow.support.storage.SimpleXStreamFlowNodeStorage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that {@link FlowNodeStorage#startBatch()} holds writes back until {@link FlowNodeStorage#flush()}
+ * without hiding anything from readers.
+ */
+public class FlowNodeStorageBatchTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test public void simpleXStream() throws Exception {
+        FlowExecution e = run();
+        File dir = tmp.newFolder();
+        batch(e, new SimpleXStreamFlowNodeStorage(e, dir), dir);
+        assertReadable(e, new SimpleXStreamFlowNodeStorage(e, dir));
+    }
+
+    @Test public void segmented() throws Exception {
+        FlowExecution e = run();
+        File dir = tmp.newFolder();
+        batch(e, new SegmentedFlowNodeStorage(e, dir), dir);
+        assertReadable(e, new SegmentedFlowNodeStorage(e, dir));
+    }
+
+    private FlowExecution run() throws Exception {
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("echo 'one'; echo 'two'"));
+        WorkflowRun b = r.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        return b.getExecution();
+    }
+
+    private void batch(FlowExecution e, FlowNodeStorage s, File dir) throws Exception {
+        FlowNode first = first(e);
+        FlowNode head = e.getCurrentHeads().get(0);
+        s.storeNode(first);
+        s.saveActions(first, Collections.<Action>singletonList(new LabelAction("first")));
+        Map<String,Long> before = list(dir);
+
+        s.startBatch();
+        s.storeNode(first); // already there
+        s.storeNode(head);
+        s.saveActions(head, Collections.<Action>singletonList(new LabelAction("head")));
+        assertSame(head, s.getNode(head.getId()));
+        assertEquals("head", label(s.loadActions(head)));
+        assertEquals("first", label(s.loadActions(first)));
+        assertEquals("nothing written while batching", before, list(dir));
+
+        s.flush();
+        assertFalse(before.equals(list(dir)));
+        assertEquals("head", label(s.loadActions(head)));
+        assertEquals("first", label(s.loadActions(first)));
+    }
+
+    /**
+     * Reads everything back from disk, through a new storage.
+     */
+    private void assertReadable(FlowExecution e, FlowNodeStorage s) throws Exception {
+        FlowNode head = s.getNode(e.getCurrentHeads().get(0).getId());
+        assertNotNull(head);
+        assertEquals("head", label(s.loadActions(head)));
+        FlowNode first = s.getNode(first(e).getId());
+        assertNotNull(first);
+        assertEquals("first", label(s.loadActions(first)));
+        FlowGraphWalker walker = new FlowGraphWalker();
+        walker.addHead(head);
+        int count = 0;
+        FlowNode n;
+        while ((n = walker.next()) != null) {
+            assertNotNull(s.getNode(n.getId()));
+            count++;
+        }
+        assertTrue(count > 2);
+    }
+
+    private static FlowNode first(FlowExecution e) {
+        FlowGraphWalker walker = new FlowGraphWalker(e);
+        FlowNode n, last = null;
+        while ((n = walker.next()) != null) {
+            if (n.getParents().isEmpty()) {
+                last = n;
+            }
+        }
+        return last;
+    }
+
+    private static String label(List<Action> actions) {
+        assertEquals(1, actions.size());
+        return ((LabelAction) actions.get(0)).getDisplayName();
+    }
+
+    private static Map<String,Long> list(File dir) {
+        Map<String,Long> r = new TreeMap<String,Long>();
+        for (File f : dir.listFiles()) {
+            r.put(f.getName(), f.length());
+        }
+        return r;
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.workflow;
+
+import hudson.model.queue.QueueTaskFuture;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowExecution;
+import org.jenkinsci.plugins.workflow.cps.nodes.StepStartNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.visualization.table.FlowGraphTable;
+import org.jenkinsci.plugins.workflow.support.visualization.table.FlowGraphTable.Row;
+import org.jenkinsci.plugins.workflow.support.visualization.table.LiveFlowGraphTable;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * {@link LiveFlowGraphTable} ends up with the same rows as {@link FlowGraphTable} built from scratch, other than the order of branches.
+ */
+public class LiveFlowGraphTableTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    private QueueTaskFuture<WorkflowRun> f;
+    private WorkflowRun b;
+    private CpsFlowExecution e;
+    private LiveFlowGraphTable t;
+
+    @Test public void sequential() throws Exception {
+        start("echo 'a'; semaphore 'seq'; echo 'b'; semaphore 'seq'; echo 'c'");
+        assertSameRows();
+        release("seq/1");
+        finish("seq/2");
+    }
+
+    @Test public void nestedBlocks() throws Exception {
+        start("echo 'a'; retry(2) {catchError {semaphore 'nested'; echo 'b'}; semaphore 'nested'}; echo 'c'");
+        assertSameRows();
+        Row catchError = null;
+        for (Row row : t.getRows()) {
+            if (row.getNode() instanceof StepStartNode) {
+                StepStartNode n = (StepStartNode) row.getNode();
+                if (n.getDescriptor().getFunctionName().equals("catchError") && !n.isBody())
+                    catchError = row;
+            }
+        }
+        assertNotNull(catchError);
+
+        // the end of the catchError block updates the row of its start
+        assertTrue(release("nested/1").contains(catchError));
+        finish("nested/2");
+    }
+
+    @Test public void parallelBranches() throws Exception {
+        start("echo 'a'; parallel(x: {semaphore 'px'; echo 'x'}, y: {echo 'y'; semaphore 'py'; echo 'y'}); semaphore 'par'; echo 'b'");
+        assertSameRows();
+        release("py/1");
+        release("px/1");
+        finish("par/1");
+    }
+
+    private void start(String script) throws Exception {
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(script));
+        f = p.scheduleBuild2(0);
+        b = f.waitForStart();
+        e = (CpsFlowExecution) b.getExecutionPromise().get();
+        e.waitForSuspension();
+        t = (LiveFlowGraphTable) b.getFlowGraph();
+        assertSame(t, b.getFlowGraph());
+    }
+
+    /**
+     * Lets the flow continue from a semaphore, and checks the rows it has added or updated are reported.
+     *
+     * @return the changed rows
+     */
+    private List<Row> release(String semaphore) throws Exception {
+        int version = t.getVersion();
+        Set<Row> before = new HashSet<Row>(t.getRows());
+        SemaphoreStep.success(semaphore, null);
+        e.waitForSuspension();
+        assertSameRows();
+
+        List<Row> changes = t.getChangesSince(version);
+        assertNotNull(changes);
+        for (Row row : t.getRows()) {
+            if (!before.contains(row))
+                assertTrue(row.getNode() + " was added but not reported", changes.contains(row));
+        }
+        assertEquals(Collections.emptyList(), t.getChangesSince(t.getVersion()));
+        assertNull(t.getChangesSince(-1));
+        assertNull(t.getChangesSince(t.getVersion() + 1));
+        return changes;
+    }
+
+    private void finish(String semaphore) throws Exception {
+        int version = t.getVersion();
+        SemaphoreStep.success(semaphore, null);
+        r.assertBuildStatusSuccess(f);
+        assertNull("cannot tell once the flow has ended", t.getChangesSince(version));
+        assertSameRows();
+        assertFalse(b.getFlowGraph() instanceof LiveFlowGraphTable);
+    }
+
+    private void assertSameRows() {
+        FlowGraphTable expected = new FlowGraphTable(e);
+        expected.build();
+        assertEquals(describe(expected.getRows()), describe(t.getRows()));
+    }
+
+    /**
+     * Node and depth of each row, sorted, as the live table orders branches differently.
+     */
+    private static List<String> describe(List<Row> rows) {
+        List<String> r = new ArrayList<String>();
+        for (Row row : rows) {
+            r.add(row.getNode().getId() + "@" + row.getTreeDepth());
+        }
+        Collections.sort(r);
+        return r;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Jesse Glick.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.jboss.marshalling.Unmarshaller;
+import org.jenkinsci.plugins.workflow.support.pickles.serialization.RiverReader;
+import org.jenkinsci.plugins.workflow.support.pickles.serialization.RiverWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the program data format written by {@link RiverWriter} and read by {@link RiverReader}.
+ */
+public class RiverWriterTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test public void roundTrip() throws Exception {
+        for (RiverWriter.Codec codec : RiverWriter.Codec.values()) {
+            File f = write(codec);
+            assertEquals(codec.name(), payload(), read(f));
+        }
+    }
+
+    @Test public void compressed() throws Exception {
+        assertTrue(write(RiverWriter.Codec.DEFLATE).length() < write(RiverWriter.Codec.NONE).length());
+    }
+
+    @Test public void sectionChecksumMismatch() throws Exception {
+        for (RiverWriter.Codec codec : RiverWriter.Codec.values()) {
+            File f = write(codec);
+            byte[] b = FileUtils.readFileToByteArray(f);
+            ByteBuffer buf = ByteBuffer.wrap(b);
+            int table = buf.getInt(b.length - 4);
+            int offset = buf.getInt(table), length = buf.getInt(table + 4);
+            b[offset + length / 2] ^= 1;
+            FileUtils.writeByteArrayToFile(f, b);
+            try {
+                read(f);
+                fail("corruption of " + codec.name() + " went unnoticed");
+            } catch (IOException x) {
+                assertTrue(x.getMessage(), x.getMessage().contains("Checksum mismatch in section 0"));
+            }
+        }
+    }
+
+    @Test public void sectionOutOfBounds() throws Exception {
+        File f = write(RiverWriter.Codec.NONE);
+        byte[] b = FileUtils.readFileToByteArray(f);
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        int table = buf.getInt(b.length - 4);
+        buf.putInt(table + 12 + 4, b.length); // length of the pickle section
+        FileUtils.writeByteArrayToFile(f, b);
+        try {
+            read(f);
+            fail("corruption went unnoticed");
+        } catch (IOException x) {
+            assertTrue(x.getMessage(), x.getMessage().contains("Corrupt stream"));
+        }
+    }
+
+    private File write(RiverWriter.Codec codec) throws IOException {
+        RiverWriter w = new RiverWriter(null, codec, 0);
+        try {
+            w.writeObject(payload());
+        } finally {
+            w.close();
+        }
+        File f = tmp.newFile();
+        FileUtils.writeByteArrayToFile(f, w.toByteArray());
+        return f;
+    }
+
+    private Object read(File f) throws Exception {
+        Unmarshaller u = new RiverReader(f, getClass().getClassLoader(), null).restorePickles().get();
+        try {
+            return u.readObject();
+        } finally {
+            u.finish();
+        }
+    }
+
+    private static List<String> payload() {
+        List<String> r = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            r.addAll(Arrays.asList("alpha", "beta", "gamma " + i));
+        }
+        return r;
+    }
+
+}
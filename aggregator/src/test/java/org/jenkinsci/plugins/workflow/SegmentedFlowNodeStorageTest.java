@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowGraphWalker;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+
+/**
+ * Runs workflows with their flow graph in {@link org.jenkinsci.plugins.workflow.support.storage.SegmentedFlowNodeStorage}.
+ */
+public class SegmentedFlowNodeStorageTest extends SingleJobTestBase {
+
+    @After public void useDefaultStorage() {
+        CpsFlowExecution.SEGMENTED_STORAGE = false;
+    }
+
+    /**
+     * The graph survives a restart, and gets compacted into a single segment at the end.
+     */
+    @Test public void restartAndCompact() throws Exception {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                CpsFlowExecution.SEGMENTED_STORAGE = true;
+                p = jenkins().createProject(WorkflowJob.class, "demo");
+                p.setDefinition(new CpsFlowDefinition("echo 'one'; semaphore 'compact'; echo 'two'"));
+                startBuilding();
+                waitForWorkflowToSuspend();
+                assertTrue(b.isBuilding());
+                assertEquals(0, list(e.getStorageDir(), ".xml").length);
+                assertEquals(1, list(e.getStorageDir(), ".seg").length);
+            }
+        });
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                CpsFlowExecution.SEGMENTED_STORAGE = false; // must still be picked up from what is on disk
+                rebuildContext(story.j);
+                assertThatWorkflowIsSuspended();
+                SemaphoreStep.success("compact/1", null);
+                waitForWorkflowToComplete();
+                assertBuildCompletedSuccessfully();
+                story.j.assertLogContains("two", b);
+
+                int count = 0;
+                FlowGraphWalker walker = new FlowGraphWalker(e);
+                FlowNode n;
+                while ((n = walker.next()) != null) {
+                    assertNotNull(e.getNode(n.getId()));
+                    count++;
+                }
+                assertTrue(count > 4);
+                assertEquals(0, list(e.getStorageDir(), ".xml").length);
+                assertEquals(1, list(e.getStorageDir(), ".seg").length);
+            }
+        });
+    }
+
+    /**
+     * A build started with {@link org.jenkinsci.plugins.workflow.support.storage.SimpleXStreamFlowNodeStorage}
+     * keeps its nodes readable from the {@code <id>.xml} files, which get folded into a segment at the end.
+     */
+    @Test public void resumeLegacyStorage() throws Exception {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                p = jenkins().createProject(WorkflowJob.class, "demo");
+                p.setDefinition(new CpsFlowDefinition("echo 'one'; semaphore 'legacy'; echo 'two'"));
+                startBuilding();
+                waitForWorkflowToSuspend();
+                assertTrue(b.isBuilding());
+                assertTrue(list(e.getStorageDir(), ".xml").length > 0);
+                assertEquals(0, list(e.getStorageDir(), ".seg").length);
+            }
+        });
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                CpsFlowExecution.SEGMENTED_STORAGE = true;
+                rebuildContext(story.j);
+                assertThatWorkflowIsSuspended();
+                FlowGraphWalker walker = new FlowGraphWalker(e);
+                FlowNode n;
+                while ((n = walker.next()) != null) {
+                    assertNotNull(e.getNode(n.getId()));
+                }
+
+                SemaphoreStep.success("legacy/1", null);
+                waitForWorkflowToComplete();
+                assertBuildCompletedSuccessfully();
+                story.j.assertLogContains("two", b);
+
+                int count = 0;
+                walker = new FlowGraphWalker(e);
+                while ((n = walker.next()) != null) {
+                    assertNotNull(e.getNode(n.getId()));
+                    count++;
+                }
+                assertTrue(count > 4);
+                assertEquals(0, list(e.getStorageDir(), ".xml").length);
+                assertEquals(1, list(e.getStorageDir(), ".seg").length);
+            }
+        });
+    }
+
+    /**
+     * A segment created right before a crash, before its header got written, does not keep the build from loading.
+     */
+    @Test public void emptySegment() throws Exception {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                CpsFlowExecution.SEGMENTED_STORAGE = true;
+                p = jenkins().createProject(WorkflowJob.class, "demo");
+                p.setDefinition(new CpsFlowDefinition("echo 'one'; semaphore 'empty'; echo 'two'"));
+                startBuilding();
+                waitForWorkflowToSuspend();
+                assertEquals(1, list(e.getStorageDir(), ".seg").length);
+                assertTrue(new File(e.getStorageDir(), "nodes-1.seg").createNewFile());
+            }
+        });
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                rebuildContext(story.j);
+                assertThatWorkflowIsSuspended();
+                assertTrue(new File(e.getStorageDir(), "nodes-1.seg").length() > 0);
+                SemaphoreStep.success("empty/1", null);
+                waitForWorkflowToComplete();
+                assertBuildCompletedSuccessfully();
+                story.j.assertLogContains("two", b);
+
+                FlowGraphWalker walker = new FlowGraphWalker(e);
+                FlowNode n;
+                while ((n = walker.next()) != null) {
+                    assertNotNull(e.getNode(n.getId()));
+                }
+                assertEquals(1, list(e.getStorageDir(), ".seg").length);
+            }
+        });
+    }
+
+    private static String[] list(File dir, final String suffix) {
+        return dir.list(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+    }
+}
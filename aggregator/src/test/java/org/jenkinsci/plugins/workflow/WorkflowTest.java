@@ -43,10 +43,15 @@ import java.util.Collections;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.io.FileUtils;
 import org.apache.tools.ant.util.JavaEnvUtils;
+import org.jenkinsci.plugins.workflow.cps.CheckpointPolicy;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowExecution;
+import org.jenkinsci.plugins.workflow.cps.CpsThreadGroup;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.pickles.serialization.IncrementalCheckpoint;
+import org.jenkinsci.plugins.workflow.support.pickles.serialization.RiverWriter;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 import org.junit.After;
 import org.junit.Ignore;
 import org.junit.Rule;
@@ -413,4 +418,73 @@ public class WorkflowTest extends SingleJobTestBase {
         });
     }
 
+    /**
+     * A workflow that saves its state only once idle still resumes after a restart.
+     */
+    @Test public void checkpointOnSuspend() throws Exception {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                p = jenkins().createProject(WorkflowJob.class, "demo");
+                CpsFlowDefinition d = new CpsFlowDefinition("echo 'one'; semaphore 'suspend'; echo 'two'");
+                d.setCheckpointPolicy(CheckpointPolicy.ON_SUSPEND);
+                d.setCheckpointInterval(500);
+                p.setDefinition(d);
+                startBuilding();
+                waitForWorkflowToSuspend();
+                assertEquals(CheckpointPolicy.ON_SUSPEND, e.getCheckpointPolicy());
+                assertTrue(e.getCheckpointsSkipped() > 0);
+                for (int i = 0; i < 100 && e.getCheckpointsSaved() == 0; i++) {
+                    Thread.sleep(100);
+                }
+                assertTrue(e.getCheckpointsSaved() > 0);
+            }
+        });
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                rebuildContext(story.j);
+                assertThatWorkflowIsSuspended();
+                assertEquals(CheckpointPolicy.ON_SUSPEND, e.getCheckpointPolicy());
+                SemaphoreStep.success("suspend/1", null);
+                waitForWorkflowToComplete();
+                assertBuildCompletedSuccessfully();
+                story.j.assertLogContains("two", b);
+            }
+        });
+    }
+
+    @After public void uncompressedProgramState() {
+        CpsThreadGroup.CODEC = RiverWriter.Codec.NONE;
+    }
+
+    /**
+     * With a compressed program state, every save writes it in full, and it still resumes after a restart.
+     */
+    @Test public void compressedProgramState() throws Exception {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                CpsThreadGroup.CODEC = RiverWriter.Codec.DEFLATE;
+                p = jenkins().createProject(WorkflowJob.class, "demo");
+                p.setDefinition(new CpsFlowDefinition("semaphore 'one'; semaphore 'two'; echo 'done'"));
+                startBuilding();
+                waitForWorkflowToSuspend();
+                SemaphoreStep.success("one/1", null);
+                waitForWorkflowToSuspend();
+                File program = new File(b.getRootDir(), "program.dat");
+                assertTrue(program.isFile());
+                assertFalse(IncrementalCheckpoint.getDeltaFile(program).exists());
+            }
+        });
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                CpsThreadGroup.CODEC = RiverWriter.Codec.NONE; // must still be picked up from what is on disk
+                rebuildContext(story.j);
+                assertThatWorkflowIsSuspended();
+                SemaphoreStep.success("two/1", null);
+                waitForWorkflowToComplete();
+                assertBuildCompletedSuccessfully();
+                story.j.assertLogContains("done", b);
+            }
+        });
+    }
+
 }
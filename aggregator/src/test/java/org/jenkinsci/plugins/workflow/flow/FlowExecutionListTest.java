@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.flow;
+
+import hudson.model.Queue;
+import hudson.model.queue.QueueTaskFuture;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class FlowExecutionListTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    /**
+     * Released by the test to let {@link TestOwner#get} of the slow owner proceed.
+     */
+    private static final CountDownLatch slowLoad = new CountDownLatch(1);
+
+    /**
+     * Number of attempts to load the broken owner.
+     */
+    private static final AtomicInteger brokenLoads = new AtomicInteger();
+
+    /**
+     * One execution that fails to load, and one that takes a long time to load,
+     * must not keep the remaining ones from being resumed.
+     */
+    @Test public void failedResumeDoesNotBlockOthers() throws Exception {
+        WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("semaphore 'resumeAll'"));
+        QueueTaskFuture<WorkflowRun> f = p.scheduleBuild2(0);
+        WorkflowRun b = f.waitForStart();
+        FlowExecutionOwner running = b.getExecutionPromise().get().getOwner();
+
+        FlowExecutionList list = FlowExecutionList.get();
+        int resumed = list.getResumedCount(), failed = list.getFailedCount();
+        assertEquals(0, list.getPendingCount());
+
+        TestOwner slow = new TestOwner("slow", running);
+        TestOwner broken = new TestOwner("broken", null);
+        list.register(slow);
+        list.register(broken);
+        list.resumeAll();
+
+        // the running build and the broken owner are dealt with while the slow one is still loading
+        waitFor(list, resumed + 1, failed + 1, 1);
+        assertEquals(1, slowLoad.getCount());
+
+        slowLoad.countDown();
+        waitFor(list, resumed + 2, failed + 1, 0);
+
+        // the one that could not be loaded is forgotten; the others are still there
+        list.unregister(slow);
+        boolean sawRunning = false;
+        for (FlowExecution e : list) {
+            sawRunning |= e.getOwner().equals(running);
+        }
+        assertTrue(sawRunning);
+        assertEquals("the broken owner was not tried again", 1, brokenLoads.get());
+
+        SemaphoreStep.success("resumeAll/1", null);
+        r.assertBuildStatusSuccess(f);
+    }
+
+    private static void waitFor(FlowExecutionList list, int resumed, int failed, int pending) throws InterruptedException {
+        long end = System.currentTimeMillis() + 30000;
+        while (list.getResumedCount() != resumed || list.getFailedCount() != failed || list.getPendingCount() != pending) {
+            assertTrue("resumed=" + list.getResumedCount() + " failed=" + list.getFailedCount() + " pending=" + list.getPendingCount(),
+                    System.currentTimeMillis() < end);
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Stands in for an execution owner: if it has a delegate, it waits for {@link #slowLoad} and then loads that,
+     * otherwise it fails to load.
+     */
+    private static final class TestOwner extends FlowExecutionOwner {
+        private final String name;
+        private final FlowExecutionOwner delegate;
+
+        TestOwner(String name, FlowExecutionOwner delegate) {
+            this.name = name;
+            this.delegate = delegate;
+        }
+
+        @Override public FlowExecution get() throws IOException {
+            if (delegate == null) {
+                brokenLoads.incrementAndGet();
+                throw new IOException("cannot load " + name);
+            }
+            try {
+                slowLoad.await();
+            } catch (InterruptedException x) {
+                throw new IOException(x);
+            }
+            return delegate.get();
+        }
+
+        @Override public File getRootDir() throws IOException {
+            throw new IOException("no root dir for " + name);
+        }
+
+        @Override public Queue.Executable getExecutable() throws IOException {
+            throw new IOException("no executable for " + name);
+        }
+
+        @Override public PrintStream getConsole() {
+            return System.out;
+        }
+
+        @Override public String getUrl() throws IOException {
+            throw new IOException("no URL for " + name);
+        }
+
+        @Override public boolean equals(Object o) {
+            return o instanceof TestOwner && ((TestOwner) o).name.equals(name);
+        }
+
+        @Override public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override public String toString() {
+            return name;
+        }
+    }
+
+}
@@ -139,6 +139,13 @@ public abstract class FlowExecution implements FlowActionStorage {
 
     public abstract void addListener(GraphListener listener);
 
+    /**
+     * Undoes {@link #addListener(GraphListener)}.
+     * Implementations that do not override this keep notifying the listener.
+     */
+    public void removeListener(GraphListener listener) {
+    }
+
     /**
      * Checks whether this flow execution has finished executing completely.
      */
@@ -21,6 +21,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,6 +40,11 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
     private CopyOnWriteList<FlowExecutionOwner> runningTasks = new CopyOnWriteList<FlowExecutionOwner>();
     private final SingleLaneExecutorService executor = new SingleLaneExecutorService(Timer.get());
 
+    /**
+     * Progress of {@link #resumeAll()}.
+     */
+    private final AtomicInteger resumed = new AtomicInteger(), pending = new AtomicInteger(), failed = new AtomicInteger();
+
     private XmlFile getConfigFile() {
         return new XmlFile(new File(Jenkins.getInstance().getRootDir(), FlowExecutionList.class.getName() + ".xml"));
     }
@@ -119,8 +128,81 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
         });
     }
 
+    /**
+     * Loads all the executions that were running, so that they start running again.
+     *
+     * <p>
+     * Loading an execution reads its build record and program state, which can take a while,
+     * so this is done on a few threads at once, and one slow build does not hold up the others.
+     * Executions are started in the order they were registered, so that the builds that have been running the longest,
+     * which are the likeliest to be holding executors or to be about to finish, get going first.
+     */
+    /*package*/ void resumeAll() {
+        List<FlowExecutionOwner> owners = new ArrayList<FlowExecutionOwner>(runningTasks.getView());
+        pending.addAndGet(owners.size());
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(RESUME_THREADS, owners.size())), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Resuming workflows");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (final FlowExecutionOwner o : owners) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        FlowExecution e = o.get();
+                        if (e.isComplete()) {
+                            unregister(o);
+                        } else {
+                            LOGGER.fine("Eager loading "+e);
+                        }
+                        resumed.incrementAndGet();
+                    } catch (IOException e) {
+                        LOGGER.log(WARNING, "Failed to load " + o + ". Unregistering", e);
+                        unregister(o);
+                        failed.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(WARNING, "Failed to load " + o, e);
+                        failed.incrementAndGet();
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        }
+        pool.shutdown();    // threads go away once everything is loaded
+    }
+
+    /**
+     * Number of executions loaded after the restart.
+     */
+    public int getResumedCount() {
+        return resumed.get();
+    }
+
+    /**
+     * Number of executions yet to be loaded after the restart.
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Number of executions that failed to load after the restart.
+     */
+    public int getFailedCount() {
+        return failed.get();
+    }
+
     private static final Logger LOGGER = Logger.getLogger(FlowExecutionList.class.getName());
 
+    /**
+     * Number of executions loaded concurrently after a restart.
+     */
+    public static int RESUME_THREADS = Integer.getInteger(FlowExecutionList.class.getName()+".resumeThreads", 4);
+
     public static FlowExecutionList get() {
         Jenkins j = Jenkins.getInstance();
         if (j == null) { // might be called during shutdown
@@ -140,9 +222,7 @@ public class FlowExecutionList implements Iterable<FlowExecution> {
 
         @Override
         public void onLoaded() {
-            for (FlowExecution e : list) {
-                LOGGER.fine("Eager loading "+e);
-            }
+            list.resumeAll();
         }
     }
 
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.cps;
+
+/**
+ * Decides how often {@link CpsThreadGroup} persists the program state after it has run.
+ *
+ * <p>
+ * Saving less often makes workflows with lots of short synchronous steps run faster,
+ * at the expense of replaying more of the program from an older state if Jenkins dies in the middle.
+ * {@link org.jenkinsci.plugins.workflow.steps.StepContext#saveState()} always saves right away, regardless of the policy.
+ *
+ * @see CpsFlowDefinition#setCheckpointPolicy(CheckpointPolicy)
+ */
+public enum CheckpointPolicy {
+    /**
+     * Saves every time the program stops running, which is the safest.
+     */
+    EVERY_CHUNK("Every time the program pauses"),
+    /**
+     * Saves at most once in every interval, and catches up at the end of the interval if something was skipped.
+     */
+    TIMED("At most once per interval"),
+    /**
+     * Saves only once the program has been waiting for the interval without running,
+     * such as when all the threads are blocked on long-running asynchronous steps.
+     */
+    ON_SUSPEND("Only once the program has been idle for the interval");
+
+    private final String displayName;
+
+    CheckpointPolicy(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Determines how long to wait before saving the program that has just run.
+     *
+     * @param sinceLastSave
+     *      milliseconds since the program state was last saved.
+     * @param interval
+     *      milliseconds configured in {@link CpsFlowExecution#getCheckpointInterval()}.
+     * @return
+     *      zero or negative to save now.
+     */
+    /*package*/ long getSaveDelay(long sinceLastSave, long interval) {
+        switch (this) {
+        case TIMED:
+            return interval-sinceLastSave;
+        case ON_SUSPEND:
+            return interval;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Whether running the program again postpones a save that was waiting for {@link #getSaveDelay(long, long)}.
+     */
+    /*package*/ boolean isPostponedByActivity() {
+        return this==ON_SUSPEND;
+    }
+}
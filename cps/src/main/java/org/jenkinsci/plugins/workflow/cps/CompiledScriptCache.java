@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.cps;
+
+import groovy.lang.GroovyClassLoader;
+import hudson.PluginManager;
+import hudson.PluginWrapper;
+import jenkins.model.Jenkins;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.tools.GroovyClass;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the bytecode compiled from recently used scripts, so that builds running the same script
+ * do not go through the parsing and CPS transformation all over again.
+ *
+ * <p>
+ * Only the bytecode is shared. Every build still defines its own classes from it in a class loader of its own,
+ * just like when it compiled the script by itself, so static state of the script and of the classes it declares
+ * is not shared between builds, and no class loader is kept alive by this cache.
+ *
+ * <p>
+ * Entries are keyed by the whole script text, not just a digest of it, since a collision would run unapproved code,
+ * and by the plugins the script was compiled against, so that it gets recompiled when those change.
+ */
+final class CompiledScriptCache {
+    private CompiledScriptCache() {}
+
+    /**
+     * Returns what has previously been compiled from the script, or null.
+     */
+    static synchronized Compiled get(String script) {
+        return CACHE.get(new Key(script));
+    }
+
+    static synchronized void put(String script, Compiled c) {
+        CACHE.put(new Key(script), c);
+    }
+
+    /**
+     * Compiles the script into bytecode, without defining any class yet.
+     */
+    static Compiled compile(String script, ClassLoader parent, CompilerConfiguration cc) {
+        CompilationUnit cu = new CompilationUnit(cc, null, new GroovyClassLoader(parent, cc));
+        cu.addSource(SCRIPT_NAME+".groovy", script);
+        cu.compile(Phases.CLASS_GENERATION);
+
+        Map<String,byte[]> classes = new HashMap<String,byte[]>();
+        for (Object o : cu.getClasses()) {
+            GroovyClass c = (GroovyClass) o;
+            classes.put(c.getName(), c.getBytes());
+        }
+        return new Compiled(classes);
+    }
+
+    /**
+     * Bytecode of the script class and the classes it declares, by their names.
+     */
+    static final class Compiled {
+        private final Map<String,byte[]> classes;
+
+        private Compiled(Map<String,byte[]> classes) {
+            this.classes = classes;
+        }
+
+        /**
+         * Defines the classes afresh in a new class loader, and returns the script class.
+         */
+        Class<? extends CpsScript> define(ClassLoader parent, CompilerConfiguration cc) throws ClassNotFoundException {
+            return new Loader(parent, cc, classes).loadClass(SCRIPT_NAME).asSubclass(CpsScript.class);
+        }
+    }
+
+    /**
+     * Defines classes from the cached bytecode as they get loaded, so that they can refer to each other in any order.
+     */
+    private static final class Loader extends GroovyClassLoader {
+        private final Map<String,byte[]> classes;
+
+        Loader(ClassLoader parent, CompilerConfiguration cc, Map<String,byte[]> classes) {
+            super(parent, cc);
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] b = classes.get(name);
+            if (b!=null)
+                return defineClass(name, b, 0, b.length);
+            return super.findClass(name);
+        }
+    }
+
+    /**
+     * Identifies the set of plugins that are active, since scripts link against their classes.
+     *
+     * <p>
+     * Which plugins are active and their versions only change on a restart, which brings up a new {@link PluginManager},
+     * while a plugin installed without a restart gets added to the list of plugins.
+     * So this is only computed again when either of those is seen to have happened.
+     */
+    private static synchronized String plugins() {
+        Jenkins j = Jenkins.getInstance();
+        if (j==null)    return "";
+        PluginManager pm = j.getPluginManager();
+        List<PluginWrapper> all = pm.getPlugins();
+        if (plugins==null || pluginManager.get()!=pm || pluginCount!=all.size()) {
+            StringBuilder b = new StringBuilder();
+            for (PluginWrapper p : all) {
+                if (p.isActive())
+                    b.append(p.getShortName()).append(':').append(p.getVersion()).append(',');
+            }
+            plugins = b.toString();
+            pluginManager = new WeakReference<PluginManager>(pm);
+            pluginCount = all.size();
+        }
+        return plugins;
+    }
+
+    /**
+     * What {@link #plugins()} last computed, and from what.
+     * The plugin manager is held weakly, so as not to keep a Jenkins that has been shut down alive.
+     */
+    private static String plugins;
+    private static WeakReference<PluginManager> pluginManager = new WeakReference<PluginManager>(null);
+    private static int pluginCount;
+
+    private static final class Key {
+        final String plugins;
+        final String script;
+        final int hash;
+
+        Key(String script) {
+            this.plugins = plugins();
+            this.script = script;
+            this.hash = plugins.hashCode()*31 + script.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))    return false;
+            Key that = (Key) o;
+            return hash==that.hash && plugins.equals(that.plugins) && script.equals(that.script);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Name of the script class, which is what {@link groovy.lang.GroovyShell} would have named it,
+     * so that the program state of builds that compiled the script by themselves still resolves.
+     */
+    private static final String SCRIPT_NAME = "Script1";
+
+    /**
+     * Maximum number of compiled scripts kept.
+     */
+    private static final int SIZE = Integer.getInteger(CompiledScriptCache.class.getName()+".size", 64);
+
+    private static final Map<Key,Compiled> CACHE = new LinkedHashMap<Key,Compiled>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,Compiled> eldest) {
+            return size() > SIZE;
+        }
+    };
+}
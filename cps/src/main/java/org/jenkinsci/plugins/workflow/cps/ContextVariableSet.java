@@ -31,7 +31,9 @@ import org.jenkinsci.plugins.workflow.cps.persistence.PersistenceContext;
 import javax.annotation.concurrent.Immutable;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.jenkinsci.plugins.workflow.cps.persistence.PersistenceContext.NONE;
 
@@ -47,18 +49,52 @@ final class ContextVariableSet implements Serializable {
     private final ContextVariableSet parent;
     private final List<Object> values = new ArrayList<Object>();
 
+    /**
+     * {@link #values} followed by those of all the ancestors, nearest first,
+     * so that a lookup does not have to walk the chain. Computed lazily since it is not persisted.
+     */
+    private transient Object[] flattened;
+
+    /**
+     * Results of {@link #get} by the requested type, with {@link #ABSENT} standing for null.
+     * Since this set is immutable, an answer never changes once found.
+     * Replaced wholesale when a type is added, so that reads need no locking.
+     */
+    private transient volatile Map<Class<?>,Object> index;
+
     ContextVariableSet(ContextVariableSet parent) {
         this.parent = parent;
     }
 
     <T> T get(Class<T> type) {
-        for (ContextVariableSet s=this; s!=null; s=s.parent) {
-            for (Object v : s.values) {
-                if (type.isInstance(v))
-                    return type.cast(v);
+        Map<Class<?>,Object> idx = index;
+        Object v = idx!=null ? idx.get(type) : null;
+        if (v==null) {
+            v = ABSENT;
+            for (Object o : flatten()) {
+                if (type.isInstance(o)) {
+                    v = o;
+                    break;
+                }
+            }
+            synchronized (this) {
+                Map<Class<?>,Object> m = index==null ? new IdentityHashMap<Class<?>,Object>() : new IdentityHashMap<Class<?>,Object>(index);
+                m.put(type, v);
+                index = m;
             }
         }
-        return null;
+        return v==ABSENT ? null : type.cast(v);
+    }
+
+    private synchronized Object[] flatten() {
+        if (flattened==null) {
+            Object[] p = parent!=null ? parent.flatten() : new Object[0];
+            Object[] f = new Object[values.size()+p.length];
+            values.toArray(f);
+            System.arraycopy(p, 0, f, values.size(), p.length);
+            flattened = f;
+        }
+        return flattened;
     }
 
     /**
@@ -73,5 +109,7 @@ final class ContextVariableSet implements Serializable {
         return o;
     }
 
+    private static final Object ABSENT = new Object();
+
     private static final long serialVersionUID = 1L;
 }
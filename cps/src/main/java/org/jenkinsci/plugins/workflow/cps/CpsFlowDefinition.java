@@ -34,6 +34,7 @@ import org.jenkinsci.plugins.workflow.flow.FlowDefinition;
 import org.jenkinsci.plugins.workflow.flow.FlowDefinitionDescriptor;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.IOException;
 import java.util.Arrays;
@@ -56,6 +57,16 @@ import org.kohsuke.stapler.StaplerRequest;
 public class CpsFlowDefinition extends FlowDefinition {
     private final String script;
 
+    /**
+     * Null means {@link CheckpointPolicy#EVERY_CHUNK}.
+     */
+    private CheckpointPolicy checkpointPolicy;
+
+    /**
+     * In milliseconds, or 0 to use the default.
+     */
+    private long checkpointInterval;
+
     @DataBoundConstructor
     public CpsFlowDefinition(String script) {
         StaplerRequest req = Stapler.getCurrentRequest();
@@ -71,6 +82,27 @@ public class CpsFlowDefinition extends FlowDefinition {
         return script;
     }
 
+    public CheckpointPolicy getCheckpointPolicy() {
+        return checkpointPolicy!=null ? checkpointPolicy : CheckpointPolicy.EVERY_CHUNK;
+    }
+
+    /**
+     * Trades how much of the program may need to be replayed after a restart for faster execution.
+     */
+    @DataBoundSetter
+    public void setCheckpointPolicy(CheckpointPolicy checkpointPolicy) {
+        this.checkpointPolicy = checkpointPolicy==CheckpointPolicy.EVERY_CHUNK ? null : checkpointPolicy;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    @DataBoundSetter
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = Math.max(0, checkpointInterval);
+    }
+
     // Used only from Groovy tests.
     public CpsFlowExecution create(FlowExecutionOwner handle, Action... actions) throws IOException {
         return create(handle, Arrays.asList(actions));
@@ -84,7 +116,9 @@ public class CpsFlowDefinition extends FlowDefinition {
                 return fa.create(this,owner,actions);
             }
         }
-        return new CpsFlowExecution(ScriptApproval.get().using(script, GroovyLanguage.get()), owner);
+        CpsFlowExecution e = new CpsFlowExecution(ScriptApproval.get().using(script, GroovyLanguage.get()), owner);
+        e.setCheckpointPolicy(checkpointPolicy, checkpointInterval);
+        return e;
     }
 
     @Extension
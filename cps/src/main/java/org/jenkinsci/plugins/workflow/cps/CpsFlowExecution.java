@@ -43,12 +43,12 @@ import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import com.thoughtworks.xstream.mapper.Mapper;
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
 import hudson.model.Action;
 import hudson.model.Result;
 import jenkins.model.Jenkins;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.jboss.marshalling.Unmarshaller;
 import org.jenkinsci.plugins.workflow.actions.ErrorAction;
 import org.jenkinsci.plugins.workflow.cps.persistence.PersistIn;
@@ -66,6 +66,7 @@ import org.jenkinsci.plugins.workflow.support.concurrent.Futures;
 import org.jenkinsci.plugins.workflow.support.pickles.serialization.PickleResolver;
 import org.jenkinsci.plugins.workflow.support.pickles.serialization.RiverReader;
 import org.jenkinsci.plugins.workflow.support.storage.FlowNodeStorage;
+import org.jenkinsci.plugins.workflow.support.storage.SegmentedFlowNodeStorage;
 import org.jenkinsci.plugins.workflow.support.storage.SimpleXStreamFlowNodeStorage;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -75,11 +76,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Set;
 import java.util.Stack;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -195,7 +198,13 @@ public class CpsFlowExecution extends FlowExecution {
      */
     /*package*/ final Stack<BlockStartNode> startNodes = new Stack<BlockStartNode>();
 
-    private final NavigableMap<Integer,FlowHead> heads = new TreeMap<Integer, FlowHead>(); // TODO inconsistent synchronization can cause ConcurrentModificationException in marshal
+    private final NavigableMap<Integer,FlowHead> heads = new ConcurrentSkipListMap<Integer, FlowHead>();
+
+    /**
+     * IDs of the nodes {@link #heads} point to, replaced whenever they change,
+     * so that {@link #isCurrentHead(FlowNode)} can be answered without any lock.
+     */
+    private transient volatile Set<String> headIds;
 
     private final AtomicInteger iota = new AtomicInteger();
 
@@ -214,6 +223,26 @@ public class CpsFlowExecution extends FlowExecution {
      */
     private boolean done;
 
+    /**
+     * How often to persist {@link CpsThreadGroup}. Null means {@link CheckpointPolicy#EVERY_CHUNK}.
+     */
+    private CheckpointPolicy checkpointPolicy;
+
+    /**
+     * In milliseconds. 0 means {@link #DEFAULT_CHECKPOINT_INTERVAL}.
+     */
+    private long checkpointInterval;
+
+    /**
+     * Number of times {@link CpsThreadGroup} was saved, and saves put off by {@link #checkpointPolicy}, since loaded.
+     */
+    /*package*/ transient volatile int checkpointsSaved, checkpointsSkipped;
+
+    /**
+     * Nanoseconds the program has spent waiting for its state to be serialized, since loaded.
+     */
+    /*package*/ transient volatile long checkpointNanos;
+
     public CpsFlowExecution(String script, FlowExecutionOwner owner) throws IOException {
         this.owner = owner;
         this.script = script;
@@ -225,8 +254,54 @@ public class CpsFlowExecution extends FlowExecution {
         return owner;
     }
 
-    private SimpleXStreamFlowNodeStorage createStorage() throws IOException {
-        return new SimpleXStreamFlowNodeStorage(this, getStorageDir());
+    /**
+     * Picks {@link SegmentedFlowNodeStorage} if so configured or if the build has already been using it,
+     * and {@link SimpleXStreamFlowNodeStorage} otherwise.
+     */
+    private FlowNodeStorage createStorage() throws IOException {
+        File dir = getStorageDir();
+        if (SEGMENTED_STORAGE || SegmentedFlowNodeStorage.isPresent(dir))
+            return new SegmentedFlowNodeStorage(this, dir);
+        return new SimpleXStreamFlowNodeStorage(this, dir);
+    }
+
+    public CheckpointPolicy getCheckpointPolicy() {
+        return checkpointPolicy!=null ? checkpointPolicy : CheckpointPolicy.EVERY_CHUNK;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval>0 ? checkpointInterval : DEFAULT_CHECKPOINT_INTERVAL;
+    }
+
+    /**
+     * @param interval
+     *      in milliseconds, or 0 to use the default.
+     */
+    public void setCheckpointPolicy(CheckpointPolicy policy, long interval) {
+        this.checkpointPolicy = policy==CheckpointPolicy.EVERY_CHUNK ? null : policy;
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * Number of times the program state has been saved since this execution was loaded.
+     */
+    public int getCheckpointsSaved() {
+        return checkpointsSaved;
+    }
+
+    /**
+     * Number of times saving the program state was put off by {@link #getCheckpointPolicy()} since this execution was loaded.
+     */
+    public int getCheckpointsSkipped() {
+        return checkpointsSkipped;
+    }
+
+    /**
+     * Time in nanoseconds that the program has been held up by saving its state since this execution was loaded.
+     * Writing the state to disk happens in the background and is not included.
+     */
+    public long getCheckpointNanos() {
+        return checkpointNanos;
     }
 
     /**
@@ -260,22 +335,41 @@ public class CpsFlowExecution extends FlowExecution {
 
     }
 
-    private GroovyShell buildShell() {
+    private CompilerConfiguration buildCompilerConfiguration() {
         ImportCustomizer ic = new ImportCustomizer();
         ic.addStarImports(NonCPS.class.getPackage().getName());
         ic.addStarImports("hudson.model","jenkins.model");
 
         CompilerConfiguration cc = new CompilerConfiguration();
         cc.addCompilationCustomizers(ic);
+        cc.addCompilationCustomizers(new TimeSlice.Customizer());
         cc.addCompilationCustomizers(new CpsTransformer());
         cc.setScriptBaseClass(CpsScript.class.getName());
+        return cc;
+    }
+
+    private ClassLoader getScriptParentClassLoader() {
         Jenkins j = Jenkins.getInstance();
-        return new GroovyShell(j!=null ? j.getPluginManager().uberClassLoader : getClass().getClassLoader(), new Binding(), cc);
+        return j!=null ? j.getPluginManager().uberClassLoader : getClass().getClassLoader();
     }
 
+    /**
+     * Instantiates the script in a class loader of its own, compiling it unless {@link CompiledScriptCache} has it already.
+     */
     private CpsScript parseScript() throws IOException {
-        GroovyShell shell = buildShell();
-        CpsScript s = (CpsScript) shell.parse(script);
+        ClassLoader parent = getScriptParentClassLoader();
+        CompilerConfiguration cc = buildCompilerConfiguration();
+        CompiledScriptCache.Compiled c = CompiledScriptCache.get(script);
+        if (c==null) {
+            c = CompiledScriptCache.compile(script, parent, cc);
+            CompiledScriptCache.put(script, c);
+        }
+        CpsScript s;
+        try {
+            s = (CpsScript) InvokerHelper.createScript(c.define(parent, cc), new Binding());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Failed to load the compiled script", e);
+        }
         s.execution = this;
         if (false) {
             System.out.println("scriptName="+s.getClass().getName());
@@ -317,7 +411,7 @@ public class CpsFlowExecution extends FlowExecution {
      * This moves us into the PREPARING state.
      * @param programDataFile
      */
-    public void loadProgramAsync(File programDataFile) {
+    public void loadProgramAsync(final File programDataFile) {
         final SettableFuture<CpsThreadGroup> result = SettableFuture.create();
         programPromise = result;
 
@@ -335,10 +429,17 @@ public class CpsFlowExecution extends FlowExecution {
                             try {
                                 CpsThreadGroup g = (CpsThreadGroup) u.readObject();
                                 result.set(g);
+                                // a thread that gave way to others when the program was saved is still runnable
+                                g.scheduleRun();
                             } catch (Throwable t) {
                                 onFailure(t);
                             } finally {
                                 PROGRAM_STATE_SERIALIZATION.set(old);
+                                try {
+                                    u.close(); // lets go of the program data file mapping
+                                } catch (IOException e) {
+                                    LOGGER.log(Level.FINE, "Failed to close "+programDataFile, e);
+                                }
                             }
                         }
 
@@ -447,14 +548,17 @@ public class CpsFlowExecution extends FlowExecution {
             return; // the execution has already finished and we are not loading program state anymore
         CpsThreadGroup g = programPromise.get();
         g.scheduleRun().get();
+        Future<Void> w = g.getPendingWrite();
+        if (w!=null)
+            w.get();    // so that the program state on disk is up to date
     }
 
-    public synchronized FlowHead getFlowHead(int id) {
+    public FlowHead getFlowHead(int id) {
         return heads.get(id);
     }
 
     @Override
-    public synchronized List<FlowNode> getCurrentHeads() {
+    public List<FlowNode> getCurrentHeads() {
         List<FlowNode> r = new ArrayList<FlowNode>();
         for (FlowHead h : heads.values()) {
             r.add(h.get());
@@ -492,20 +596,36 @@ public class CpsFlowExecution extends FlowExecution {
 
     @Override
     public boolean isCurrentHead(FlowNode n) {
-        for (FlowHead h : heads.values()) {
-            if (h.get().equals(n))
-                return true;
+        Set<String> ids = headIds;
+        if (ids==null) {
+            headsChanged();
+            ids = headIds;
         }
-        return false;
+        return ids.contains(n.getId());
     }
 
     // called by FlowHead to add a new head
     void addHead(FlowHead h) {
         heads.put(h.getId(),h);
+        headsChanged();
     }
 
     void removeHead(FlowHead h) {
         heads.remove(h.getId());
+        headsChanged();
+    }
+
+    /**
+     * Called whenever {@link #heads} or the nodes they point to change.
+     */
+    synchronized void headsChanged() {
+        Set<String> ids = new HashSet<String>();
+        for (FlowHead h : heads.values()) {
+            FlowNode n = h.get();
+            if (n!=null)
+                ids.add(n.getId());
+        }
+        headIds = ids;
     }
 
 
@@ -517,6 +637,13 @@ public class CpsFlowExecution extends FlowExecution {
         listeners.add(listener);
     }
 
+    @Override
+    public void removeListener(GraphListener listener) {
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
+    }
+
     @Override
     public void finish(Result result) throws IOException, InterruptedException {
         setResult(result);
@@ -579,8 +706,14 @@ public class CpsFlowExecution extends FlowExecution {
         done = true;
         FlowHead first = getFirstHead();
         first.setNewHead(head);
-        heads.clear();
-        heads.put(first.getId(),first);
+        heads.tailMap(first.getId(), false).clear();
+        headsChanged();
+
+        try {
+            storage.onExecutionCompleted();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to compact the flow graph of "+this, e);
+        }
     }
 
     FlowHead getFirstHead() {
@@ -621,7 +754,7 @@ public class CpsFlowExecution extends FlowExecution {
             writeChild(w, context, "result", e.result, Result.class);
             writeChild(w, context, "script", e.script, String.class);
             writeChild(w, context, "owner", e.owner, Object.class);
-            for (FlowHead h : e.heads.values()) { // TODO synchronize access to e.heads: https://jenkins.ci.cloudbees.com/job/plugins/job/workflow-plugin/org.jenkins-ci.plugins.workflow$workflow-aggregator/362/testReport/junit/org.jenkinsci.plugins.workflow.steps.parallel/ParallelStepTest/localMethodCallWithinLotsOfBranches/
+            for (FlowHead h : e.heads.values()) { // weakly consistent, so no ConcurrentModificationException while the program runs
                 writeChild(w, context, "head", h.getId()+":"+h.get().getId(), String.class);
             }
             writeChild(w, context, "iota", e.iota.get(), Integer.class);
@@ -629,6 +762,11 @@ public class CpsFlowExecution extends FlowExecution {
             for (BlockStartNode st : e.startNodes) {
                 writeChild(w, context, "start", st.getId(), String.class);
             }
+
+            if (e.checkpointPolicy!=null) {
+                writeChild(w, context, "checkpointPolicy", e.checkpointPolicy, CheckpointPolicy.class);
+                writeChild(w, context, "checkpointInterval", e.checkpointInterval, Long.class);
+            }
         }
 
         private <T> void writeChild(HierarchicalStreamWriter w, MarshallingContext context, String name, T v, Class<T> staticType) {
@@ -654,7 +792,7 @@ public class CpsFlowExecution extends FlowExecution {
 
                 FlowNodeStorage storage = result.storage;
                 Stack<BlockStartNode> startNodes = new Stack<BlockStartNode>();
-                Map<Integer,FlowHead> heads = new TreeMap<Integer, FlowHead>();
+                Map<Integer,FlowHead> heads = new ConcurrentSkipListMap<Integer, FlowHead>();
 
                 while (reader.hasMoreChildren()) {
                     reader.moveDown();
@@ -686,6 +824,14 @@ public class CpsFlowExecution extends FlowExecution {
                     if (nodeName.equals("start")) {
                         String id = readChild(reader, context, String.class, result);
                         startNodes.add((BlockStartNode) storage.getNode(id));
+                    } else
+                    if (nodeName.equals("checkpointPolicy")) {
+                        CheckpointPolicy p = readChild(reader, context, CheckpointPolicy.class, result);
+                        setField(result, "checkpointPolicy", p);
+                    } else
+                    if (nodeName.equals("checkpointInterval")) {
+                        Long interval = readChild(reader, context, Long.class, result);
+                        setField(result, "checkpointInterval", interval);
                     }
 
                     reader.moveUp();
@@ -693,6 +839,7 @@ public class CpsFlowExecution extends FlowExecution {
 
                 setField(result, "startNodes", startNodes);
                 setField(result, "heads", heads);
+                result.headsChanged();
 
                 return result;
             } catch (IOException e) {
@@ -719,6 +866,18 @@ public class CpsFlowExecution extends FlowExecution {
 
     private static final Logger LOGGER = Logger.getLogger(CpsFlowExecution.class.getName());
 
+    /**
+     * Whether new builds should store their flow graph in {@link SegmentedFlowNodeStorage}.
+     */
+    @Restricted(NoExternalUse.class)
+    public static boolean SEGMENTED_STORAGE = Boolean.getBoolean(CpsFlowExecution.class.getName()+".segmentedStorage");
+
+    /**
+     * Milliseconds used by {@link CheckpointPolicy#TIMED} and {@link CheckpointPolicy#ON_SUSPEND} when the interval is not configured.
+     */
+    @Restricted(NoExternalUse.class)
+    public static long DEFAULT_CHECKPOINT_INTERVAL = Long.getLong(CpsFlowExecution.class.getName()+".checkpointInterval", 10*1000);
+
     /**
      * While we serialize/deserialize {@link CpsThreadGroup} and the entire program execution state,
      * this field is set to {@link CpsFlowExecution} that will own it.
@@ -297,6 +297,7 @@ public class CpsStepContext extends DefaultStepContext { // TODO add XStream cla
             throw new IllegalStateException("Already completed", t);
         this.outcome = new Outcome(null,t);
 
+        flushListener();
         scheduleNextRun();
     }
 
@@ -305,6 +306,7 @@ public class CpsStepContext extends DefaultStepContext { // TODO add XStream cla
             throw new IllegalStateException("Already completed");
         this.outcome = new Outcome(returnValue,null);
 
+        flushListener();
         scheduleNextRun();
     }
 
@@ -417,7 +419,15 @@ public class CpsStepContext extends DefaultStepContext { // TODO add XStream cla
                     try {
                         // TODO keep track of whether the program was saved anyway after saveState was called but before now, and do not bother resaving it in that case
                         result.saveProgram();
-                        f.set(null);
+                        // only done once the state is actually on disk
+                        Futures.addCallback(result.getPendingWrite(), new FutureCallback<Void>() {
+                            @Override public void onSuccess(Void v) {
+                                f.set(null);
+                            }
+                            @Override public void onFailure(Throwable t) {
+                                f.setException(t);
+                            }
+                        });
                     } catch (IOException x) {
                         f.setException(x);
                     }
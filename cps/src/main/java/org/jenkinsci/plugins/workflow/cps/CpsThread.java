@@ -99,6 +99,11 @@ public final class CpsThread implements Serializable {
      */
     private StepExecution step;
 
+    /**
+     * CPU time in nanoseconds spent running this thread since it was loaded.
+     */
+    private transient long cpuTime;
+
     CpsThread(CpsThreadGroup group, int id, Continuable program, FlowHead head, ContextVariableSet contextVariables) {
         this.group = group;
         this.id = id;
@@ -136,6 +141,18 @@ public final class CpsThread implements Serializable {
         this.step = step;
     }
 
+    /**
+     * CPU time in nanoseconds spent running this thread since it was loaded,
+     * to spot scripts that keep the CPS VM busy.
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /*package*/ void addCpuTime(long nanos) {
+        cpuTime += nanos;
+    }
+
     /**
      * Executes CPS code synchronously a little bit more, until it hits
      * the point the workflow needs to be dehydrated.
@@ -173,6 +190,10 @@ public final class CpsThread implements Serializable {
                 } else {
                     // break but with a different value
                     outcome = r.suspend;
+                    if (resumeValue!=null) {
+                        // the thread merely gave way to others (see TimeSlice), so the promise is kept for its next chunk
+                        return outcome;
+                    }
                 }
             }
 
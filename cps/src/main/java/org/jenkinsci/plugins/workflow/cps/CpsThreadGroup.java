@@ -26,30 +26,45 @@ package org.jenkinsci.plugins.workflow.cps;
 
 import com.cloudbees.groovy.cps.Continuable;
 import com.cloudbees.groovy.cps.Outcome;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import groovy.lang.Closure;
+import hudson.init.Terminator;
 import hudson.model.Result;
+import jenkins.util.Timer;
 import org.jenkinsci.plugins.workflow.actions.ErrorAction;
 import org.jenkinsci.plugins.workflow.cps.persistence.PersistIn;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.concurrent.Futures;
+import org.jenkinsci.plugins.workflow.support.pickles.serialization.IncrementalCheckpoint;
 import org.jenkinsci.plugins.workflow.support.pickles.serialization.RiverWriter;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.*;
@@ -87,9 +102,52 @@ public final class CpsThreadGroup implements Serializable {
     /**
      * Ensures only one thread updates CPS VM state at any given time
      * by queueing such tasks in here.
+     * Tasks run on {@link CpsVmThread}s shared with other groups, but one at a time and in order.
      */
     transient ExecutorService runner;
 
+    /**
+     * Keeps track of what has been written to the program data file, so that only what changed needs to be written.
+     */
+    private transient IncrementalCheckpoint checkpoint;
+
+    /**
+     * The program state handed over to {@link #WRITER} that may not have made it to the disk yet.
+     */
+    private transient volatile ListenableFuture<Void> pendingWrite;
+
+    /**
+     * Size of the last serialized program state, to size the buffer for the next one.
+     */
+    private transient int lastSize;
+
+    /**
+     * When the program state was last saved, and whether it has run since then.
+     * Used to implement {@link CheckpointPolicy}.
+     */
+    private transient long lastSaved;
+    private transient boolean dirty;
+
+    /**
+     * Save that was put off by {@link CheckpointPolicy}, if any.
+     */
+    private transient ScheduledFuture<?> pendingSave;
+
+    /**
+     * {@link CpsThread#id} of the thread that ran last, so that the next one gets to run first next time.
+     */
+    private transient int lastRun = -1;
+
+    /**
+     * {@link System#nanoTime()} at which the current {@link #run()} is out of time.
+     */
+    private transient long deadline;
+
+    /**
+     * Completion of the run that {@link #scheduleRun()} has submitted and that has not started yet, if any.
+     */
+    private transient SettableFuture<Void> pendingRun;
+
     /**
      * "Exported" closures that are referenced by live {@link CpsStepContext}s.
      */
@@ -112,13 +170,7 @@ public final class CpsThreadGroup implements Serializable {
     }
 
     private void setupTransients() {
-        runner = Executors.newSingleThreadExecutor(
-                new ThreadFactory() {
-                    @Override
-                    public CpsVmThread newThread(Runnable r) {
-                        return new CpsVmThread(CpsThreadGroup.this, r);
-                    }
-                });
+        runner = CpsVmExecutorService.forGroup(this);
     }
 
     @CpsVmThreadOnly
@@ -161,122 +213,242 @@ public final class CpsThreadGroup implements Serializable {
 
     /**
      * Schedules the execution of all the runnable threads.
+     *
+     * <p>
+     * Requests made before the scheduled run gets going are folded into it.
+     *
+     * @return
+     *      completes once the runnable threads have run and the program is suspended again,
+     *      and anything they submitted to {@link #runner} along the way (such as listener notifications) is done.
+     * @see #scheduleRunListenable()
      */
     public Future<?> scheduleRun() {
-        final Future<Future<?>> f = runner.submit(new Callable<Future<?>>() {
-            public Future<?> call() throws Exception {
-                run();
-                // we ensure any tasks submitted during run() will complete before we declare us complete
-                // those include things like notifying listeners or updating various other states
-                // runner is a single-threaded queue, so running a no-op and waiting for its completion
-                // ensures that everything submitted in front of us has finished.
-
-                return runner.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (threads.isEmpty())
-                            runner.shutdown();
-                    }
-                });
-            }
-        });
-
-        // unfortunately that means we have to wait for Future of Future,
-        // so we need a rather unusual implementation of Future to hide that behind the scene.
-        return new Future<Object>() {
-            @Override
-            public boolean cancel(boolean mayInterruptIfRunning) {
-                if (!f.isDone())
-                    return f.cancel(mayInterruptIfRunning);
-
-                try {
-                    return f.get().cancel(mayInterruptIfRunning);
-                } catch (InterruptedException e) {
-                    throw new AssertionError(e);
-                } catch (ExecutionException e) {
-                    return false;
-                }
-            }
-
-            @Override
-            public boolean isCancelled() {
-                if (f.isCancelled())    return true;
-                if (!f.isDone())        return false;
-
-                try {
-                    return f.get().isCancelled();
-                } catch (InterruptedException e) {
-                    throw new AssertionError(e);
-                } catch (ExecutionException e) {
-                    return false;
-                }
-            }
+        return scheduleRunListenable();
+    }
 
-            @Override
-            public boolean isDone() {
-                if (!f.isDone())    return false;
+    /**
+     * Same as {@link #scheduleRun()}, but lets the caller be notified of the completion.
+     */
+    /*package*/ synchronized ListenableFuture<Void> scheduleRunListenable() {
+        if (pendingRun!=null)
+            return pendingRun;
 
-                try {
-                    return f.get().isDone();
-                } catch (InterruptedException e) {
-                    throw new AssertionError(e);
-                } catch (ExecutionException e) {
-                    return false;
+        final SettableFuture<Void> f = SettableFuture.create();
+        pendingRun = f;
+        try {
+            runner.execute(new Runnable() {
+                public void run() {
+                    synchronized (CpsThreadGroup.this) {
+                        pendingRun = null;  // from now on, requests need another run
+                    }
+                    final ListenableFuture<Void> more;
+                    try {
+                        more = CpsThreadGroup.this.run();
+                    } catch (Throwable t) {
+                        f.setException(t);
+                        return;
+                    }
+                    if (more!=null) {
+                        // we have yielded, and we are done when the rest of the program has run
+                        Futures.addCallback(more, new FutureCallback<Void>() {
+                            public void onSuccess(Void result) {
+                                f.set(null);
+                            }
+                            public void onFailure(Throwable t) {
+                                f.setException(t);
+                            }
+                        });
+                        return;
+                    }
+                    // runner runs tasks in order, so once this one runs, everything submitted during run() has finished
+                    runner.execute(new Runnable() {
+                        public void run() {
+                            if (threads.isEmpty())
+                                runner.shutdown();
+                            f.set(null);
+                        }
+                    });
                 }
-            }
-
-            @Override
-            public Object get() throws InterruptedException, ExecutionException {
-                return f.get().get();
-            }
-
-            @Override
-            public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-                // FIXME: this ends up waiting up to 2x
-                return f.get(timeout,unit).get(timeout,unit);
-            }
-        };
+            });
+        } catch (RejectedExecutionException e) {
+            pendingRun = null;
+            throw e;
+        }
+        return f;
     }
 
     /**
      * Run all runnable threads as much as possible.
+     *
+     * <p>
+     * Threads take turns one chunk at a time, and a thread that runs past {@link #TIME_SLICE} ends its chunk early
+     * (see {@link TimeSlice}). Once the time slice is used up, we yield and come back
+     * later, so that other tasks queued for this program (such as listeners) and other programs get to run in between,
+     * and the next turn starts with the thread after the one that ran last.
+     *
+     * @return
+     *      if we have yielded, completion of the rest of the run, or else null.
      */
     @CpsVmThreadOnly("root")
-    private void run() throws IOException {
+    private ListenableFuture<Void> run() throws IOException {
         boolean doneSomeWork = false;
         boolean changed;    // used to see if we need to loop over
-        do {
-            changed = false;
-            for (CpsThread t : threads.values().toArray(new CpsThread[threads.size()])) {
-                if (t.isRunnable()) {
-                    Outcome o = t.runNextChunk();
-                    if (o.isFailure()) {
-                        assert !t.isAlive();    // failed thread is non-resumable
-
-                        // workflow produced an exception
-                        execution.setResult(Result.FAILURE);
-                        t.head.get().addAction(new ErrorAction(o.getAbnormal()));
-                    }
+        boolean outOfTime = false;
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIME_SLICE);
+        // nodes created and updated along the way are written out together at the end
+        execution.storage.startBatch();
+        boolean completed = false;
+        try {
+            do {
+                changed = false;
+                for (CpsThread t : inTurn()) {
+                    if (t.isRunnable()) {
+                        Outcome o = runNextChunk(t);
+                        lastRun = t.id;
+                        if (o.isFailure()) {
+                            assert !t.isAlive();    // failed thread is non-resumable
+
+                            // workflow produced an exception
+                            execution.setResult(Result.FAILURE);
+                            t.head.get().addAction(new ErrorAction(o.getAbnormal()));
+                        }
 
-                    if (!t.isAlive()) {
-                        LOGGER.fine("completed " + t);
+                        if (!t.isAlive()) {
+                            LOGGER.fine("completed " + t);
 
-                        threads.remove(t.id);
-                        if (threads.isEmpty()) {
-                            execution.onProgramEnd(o);
+                            threads.remove(t.id);
+                            if (threads.isEmpty()) {
+                                execution.onProgramEnd(o);
+                            }
                         }
-                    }
 
-                    changed = true;
+                        changed = true;
+                        if (isOutOfTime()) {
+                            outOfTime = true;
+                            break;
+                        }
+                    }
                 }
+
+                doneSomeWork |= changed;
+            } while (changed && !outOfTime);
+            completed = true;
+        } finally {
+            // the program state refers to these nodes, so they need to be persisted first
+            try {
+                execution.storage.flush();
+            } catch (IOException e) {
+                if (completed)  throw e;
+                // do not let this mask the original problem
+                LOGGER.log(WARNING, "failed to persist flow nodes", e);
             }
+        }
 
-            doneSomeWork |= changed;
-        } while (changed);
+        if (outOfTime && isRunnable()) {
+            // the program is not suspended yet, so the next turn saves it
+            dirty = true;
+            return scheduleRunListenable();
+        }
 
         if (doneSomeWork) {
+            dirty = true;
+            checkpoint();
+        }
+        return null;
+    }
+
+    /**
+     * Has the current {@link #run()} used up its {@link #TIME_SLICE}?
+     */
+    @CpsVmThreadOnly
+    /*package*/ boolean isOutOfTime() {
+        return System.nanoTime()-deadline > 0;
+    }
+
+    /**
+     * All the threads, starting from the one after {@link #lastRun}.
+     */
+    private List<CpsThread> inTurn() {
+        List<CpsThread> all = new ArrayList<CpsThread>(threads.values());
+        Collections.sort(all, new Comparator<CpsThread>() {
+            @Override
+            public int compare(CpsThread o1, CpsThread o2) {
+                return o1.id-o2.id;
+            }
+        });
+        int i = 0;
+        while (i<all.size() && all.get(i).id<=lastRun)
+            i++;
+        Collections.rotate(all, -i);
+        return all;
+    }
+
+    private boolean isRunnable() {
+        for (CpsThread t : threads.values()) {
+            if (t.isRunnable())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs a chunk of the thread and accounts for the CPU time it took.
+     */
+    private Outcome runNextChunk(CpsThread t) throws IOException {
+        long start = cpuTime();
+        Outcome o = t.runNextChunk();
+        long spent = cpuTime()-start;
+        t.addCpuTime(spent);
+        if (spent > TimeUnit.MILLISECONDS.toNanos(SLOW_CHUNK)) {
+            LOGGER.log(WARNING, "{0} in {1} ran for {2}ms of CPU without pausing; others in this workflow had to wait",
+                    new Object[] {t, execution, TimeUnit.NANOSECONDS.toMillis(spent)});
+        }
+        return o;
+    }
+
+    private static long cpuTime() {
+        return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Saves the program that has just run, or puts that off as {@link CpsFlowExecution#getCheckpointPolicy()} says.
+     */
+    @CpsVmThreadOnly("root")
+    private void checkpoint() throws IOException {
+        CheckpointPolicy p = execution.getCheckpointPolicy();
+        long delay = p.getSaveDelay(System.currentTimeMillis()-lastSaved, execution.getCheckpointInterval());
+        if (delay<=0 || threads.isEmpty()) {
             saveProgram();
+            return;
+        }
+
+        execution.checkpointsSkipped++;
+        if (pendingSave!=null) {
+            if (!p.isPostponedByActivity())
+                return;     // the pending save will catch up
+            pendingSave.cancel(false);
         }
+        pendingSave = Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runner.submit(new Callable<Void>() {
+                        public Void call() {
+                            // nobody waits for this, so failures would go unnoticed
+                            try {
+                                if (dirty)
+                                    saveProgram();
+                            } catch (Throwable t) {
+                                LOGGER.log(WARNING, "program state save failed", t);
+                            }
+                            return null;
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the program has ended in the mean time, and the final state is already saved
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -301,29 +473,47 @@ public final class CpsThreadGroup implements Serializable {
     @CpsVmThreadOnly
     void saveProgram() throws IOException {
         File f = execution.getProgramDataFile();
+        if (pendingSave!=null) {
+            pendingSave.cancel(false);
+            pendingSave = null;
+        }
+        long start = System.nanoTime();
         saveProgram(f);
+        execution.checkpointNanos += System.nanoTime()-start;
+        lastSaved = System.currentTimeMillis();
+        dirty = false;
+        execution.checkpointsSaved++;
     }
 
+    /**
+     * Serializes the program state right here, as the program must not run while we do so,
+     * then has it written to the file by {@link #WRITER} so that the program can move on.
+     * If the previous state is still being written, this waits for that first, so that states land in order.
+     */
     @CpsVmThreadOnly
     public void saveProgram(File f) throws IOException {
-        File dir = f.getParentFile();
-        File tmpFile = File.createTempFile("atomic",null, dir);
-
         assertVmThread();
 
         CpsFlowExecution old = PROGRAM_STATE_SERIALIZATION.get();
         PROGRAM_STATE_SERIALIZATION.set(execution);
 
         try {
-            RiverWriter w = new RiverWriter(tmpFile, execution.getOwner());
+            final RiverWriter.Codec codec = CODEC;
+            RiverWriter w = new RiverWriter(execution.getOwner(), codec, lastSize+lastSize/8);
             try {
                 w.writeObject(this);
             } finally {
                 w.close();
             }
-            f.delete();
-            tmpFile.renameTo(f);
-            LOGGER.log(FINE, "program state saved");
+            byte[] program = w.toByteArray();
+            lastSize = program.length;
+
+            awaitWrite();
+            if (checkpoint==null || !checkpoint.getBase().equals(f))
+                checkpoint = new IncrementalCheckpoint(f);
+            // IncrementalCheckpoint can only find what is unchanged in an uncompressed state; it compresses the delta instead
+            pendingWrite = write(checkpoint, program, codec==RiverWriter.Codec.NONE);
+            LOGGER.log(FINE, "program state serialized");
         } catch (RuntimeException e) {
             LOGGER.log(WARNING, "program state save failed",e);
             propagateErrorToWorkflow(e);
@@ -334,7 +524,72 @@ public final class CpsThreadGroup implements Serializable {
             throw new IOException("Failed to persist "+f,e);
         } finally {
             PROGRAM_STATE_SERIALIZATION.set(old);
-            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Waits until the program state last saved is actually on disk.
+     *
+     * @throws IOException
+     *      if writing it has failed.
+     */
+    @CpsVmThreadOnly
+    /*package*/ void awaitWrite() throws IOException {
+        ListenableFuture<Void> f = pendingWrite;
+        if (f==null)    return;
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            throw (IOException)new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write the program state", e.getCause());
+        } finally {
+            if (f.isDone())
+                pendingWrite = null;
+        }
+    }
+
+    /**
+     * Program state last handed over to {@link #WRITER}, or null if everything has been written.
+     */
+    /*package*/ ListenableFuture<Void> getPendingWrite() {
+        return pendingWrite;
+    }
+
+    private static ListenableFuture<Void> write(final IncrementalCheckpoint checkpoint, final byte[] program, final boolean incremental) {
+        final SettableFuture<Void> f = SettableFuture.create();
+        PENDING_WRITES.add(f);
+        WRITER.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (incremental)
+                        checkpoint.write(program);
+                    else
+                        checkpoint.writeFull(program);
+                    LOGGER.log(FINE, "program state saved");
+                    f.set(null);
+                } catch (Throwable t) {
+                    LOGGER.log(WARNING, "program state save failed",t);
+                    f.setException(t);
+                } finally {
+                    PENDING_WRITES.remove(f);
+                }
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Makes sure that the program states still being written are on disk before Jenkins goes down.
+     */
+    @Terminator
+    public static void awaitPendingWrites() throws InterruptedException {
+        for (ListenableFuture<Void> f : PENDING_WRITES) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                // already reported
+            }
         }
     }
 
@@ -359,6 +614,42 @@ public final class CpsThreadGroup implements Serializable {
 
     private static final Logger LOGGER = Logger.getLogger(CpsThreadGroup.class.getName());
 
+    /**
+     * Milliseconds a program may run before letting others run.
+     */
+    @Restricted(NoExternalUse.class)
+    public static long TIME_SLICE = Long.getLong(CpsThreadGroup.class.getName()+".timeSlice", 100);
+
+    /**
+     * Milliseconds of CPU time a single chunk may take before we warn about it.
+     */
+    @Restricted(NoExternalUse.class)
+    public static long SLOW_CHUNK = Long.getLong(CpsThreadGroup.class.getName()+".slowChunk", 5000);
+
+    /**
+     * How the program state gets encoded. Unless it is {@link RiverWriter.Codec#NONE},
+     * every save writes the whole state rather than only how it differs from the last full one.
+     */
+    @Restricted(NoExternalUse.class)
+    public static RiverWriter.Codec CODEC = RiverWriter.Codec.valueOf(System.getProperty(CpsThreadGroup.class.getName()+".codec", "NONE"));
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Writes serialized program states of all the executions to disk.
+     */
+    private static final ExecutorService WRITER = Executors.newFixedThreadPool(
+            Integer.getInteger(CpsThreadGroup.class.getName()+".writerThreads", 2),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Workflow program state writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private static final Set<ListenableFuture<Void>> PENDING_WRITES = new CopyOnWriteArraySet<ListenableFuture<Void>>();
+
     private static final long serialVersionUID = 1L;
 
     /**
@@ -367,7 +658,8 @@ public final class CpsThreadGroup implements Serializable {
      */
     @CpsVmThreadOnly
     /*package*/ static CpsThreadGroup current() {
-        return CpsVmThread.current().threadGroup;
+        CpsVmThread t = CpsVmThread.current();
+        return t!=null ? t.threadGroup : null;
     }
 
     private static final Runnable NOOP = new Runnable() {
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.cps;
+
+import hudson.remoting.SingleLaneExecutorService;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks of one {@link CpsThreadGroup} on the {@link CpsVmThread}s shared by all of them.
+ *
+ * <p>
+ * {@link #forGroup(CpsThreadGroup)} gives each {@link CpsThreadGroup} its own lane, in which tasks run one at a time
+ * and in the order they were submitted, just as if the group had a thread of its own,
+ * so that a thousand mostly idle workflows do not need a thousand threads.
+ */
+final class CpsVmExecutorService extends AbstractExecutorService {
+    private final CpsThreadGroup group;
+
+    private CpsVmExecutorService(CpsThreadGroup group) {
+        this.group = group;
+    }
+
+    /**
+     * Creates the lane for the given group.
+     */
+    static ExecutorService forGroup(CpsThreadGroup group) {
+        return new SingleLaneExecutorService(new CpsVmExecutorService(group));
+    }
+
+    public void execute(final Runnable command) {
+        POOL.execute(new Runnable() {
+            public void run() {
+                CpsVmThread t = (CpsVmThread) Thread.currentThread();
+                String name = t.getName();
+                t.threadGroup = group;
+                t.setName("CPS VM execution thread: " + group.getExecution());
+                try {
+                    command.run();
+                } finally {
+                    t.threadGroup = null;
+                    t.setName(name);
+                }
+            }
+        });
+    }
+
+    // the lifecycle is that of the lane, which SingleLaneExecutorService manages
+
+    public void shutdown() {
+    }
+
+    public List<Runnable> shutdownNow() {
+        return Collections.emptyList();
+    }
+
+    public boolean isShutdown() {
+        return false;
+    }
+
+    public boolean isTerminated() {
+        return false;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return false;
+    }
+
+    /**
+     * Number of lanes waiting for a thread.
+     */
+    public static int getQueueDepth() {
+        return POOL.getQueue().size();
+    }
+
+    /**
+     * Number of lanes currently running on a thread.
+     */
+    public static int getActiveCount() {
+        return POOL.getActiveCount();
+    }
+
+    /**
+     * Number of {@link CpsVmThread}s currently alive.
+     */
+    public static int getPoolSize() {
+        return POOL.getPoolSize();
+    }
+
+    /**
+     * Maximum number of {@link CpsVmThread}s.
+     * Scripts that block in a thread (say, by sleeping in a {@link com.cloudbees.groovy.cps.NonCPS} method) hold on to one, so this should not be too tight.
+     */
+    public static final int MAX_THREADS = Integer.getInteger(CpsVmExecutorService.class.getName()+".maxThreads", 64);
+
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    return new CpsVmThread(r, "CPS VM executor #" + n.incrementAndGet());
+                }
+            });
+    static {
+        POOL.allowCoreThreadTimeOut(true);
+    }
+}
@@ -3,20 +3,31 @@ package org.jenkinsci.plugins.workflow.cps;
 /**
  * Thread that executes {@link CpsThreadGroup} and handles all its state updates.
  *
+ * <p>
+ * These threads are shared by all the {@link CpsThreadGroup}s through {@link CpsVmExecutorService},
+ * and {@link #threadGroup} is set while the thread is running a task of a particular one.
+ *
  * @author Kohsuke Kawaguchi
  * @see CpsVmThreadOnly
  */
 class CpsVmThread extends Thread {
-    final CpsThreadGroup threadGroup;
+    /**
+     * {@link CpsThreadGroup} whose task this thread is running, or null if idle.
+     * Only touched by this thread itself.
+     */
+    CpsThreadGroup threadGroup;
 
-    public CpsVmThread(CpsThreadGroup threadGroup, Runnable target) {
-        super(target, "CPS VM execution thread: " + threadGroup.getExecution().toString());
-        this.threadGroup = threadGroup;
+    public CpsVmThread(Runnable target, String name) {
+        super(target, name);
+        setDaemon(true);
     }
 
+    /**
+     * Returns the current thread if it is running a task of some {@link CpsThreadGroup}.
+     */
     /*package*/ static CpsVmThread current() {
         Thread t = Thread.currentThread();
-        if (t instanceof CpsVmThread) {
+        if (t instanceof CpsVmThread && ((CpsVmThread) t).threadGroup!=null) {
             return (CpsVmThread) t;
         }
         return null;
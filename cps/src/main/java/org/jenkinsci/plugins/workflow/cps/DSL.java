@@ -47,10 +47,7 @@ import java.lang.annotation.Annotation;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
 import static org.jenkinsci.plugins.workflow.cps.ThreadTaskResult.*;
 import static org.jenkinsci.plugins.workflow.cps.persistence.PersistenceContext.*;
@@ -64,7 +61,6 @@ import static org.jenkinsci.plugins.workflow.cps.persistence.PersistenceContext.
 public class DSL extends GroovyObjectSupport implements Serializable {
     private final FlowExecutionOwner handle;
     private transient CpsFlowExecution exec;
-    private transient Map<String,StepDescriptor> functions;
 
     public DSL(FlowExecutionOwner handle) {
         this.handle = handle;
@@ -91,28 +87,20 @@ public class DSL extends GroovyObjectSupport implements Serializable {
             throw new Error(e); // TODO
         }
 
-        if (functions == null) {
-            functions = new TreeMap<String,StepDescriptor>();
-            for (StepDescriptor d : StepDescriptor.all()) {
-                functions.put(d.getFunctionName(), d);
-            }
-        }
-        final StepDescriptor d = functions.get(name);
-        if (d == null) {
-            throw new NoSuchMethodError("No such DSL method " + name + " found among " + functions.keySet());
+        StepDispatchTable functions = StepDispatchTable.get();
+        final StepDispatchTable.Function f = functions.get(name);
+        if (f == null) {
+            throw new NoSuchMethodError("No such DSL method " + name + " found among " + functions.getFunctionNames());
         }
+        final StepDescriptor d = f.descriptor;
 
-        final NamedArgsAndClosure ps = parseArgs(d,args);
+        final NamedArgsAndClosure ps = parseArgs(f,args);
 
         CpsThread thread = CpsThread.current();
 
         FlowNode an;
 
-        // TODO: generalize the notion of Step taking over the FlowNode creation.
-        // see https://trello.com/c/v6Pbwqxj/13-allowing-steps-to-build-flownodes
-        boolean hack = d instanceof ParallelStep.DescriptorImpl;
-
-        if (ps.body == null && !hack) {
+        if (ps.body == null && !f.alwaysBlock) {
             an = new StepAtomNode(exec, d, thread.head.get());
             // TODO: use CPS call stack to obtain the current call site source location. See JENKINS-23013
             thread.head.setNewHead(an);
@@ -190,6 +178,13 @@ public class DSL extends GroovyObjectSupport implements Serializable {
                 this.namedArgs.put(k, v);
             }
         }
+
+        private NamedArgsAndClosure(Object value, Closure body) {
+            // the common case of a single positional argument, as in "echo 'hello'"
+            this.namedArgs = new LinkedHashMap<String,Object>(2);
+            this.namedArgs.put("value", value instanceof GString ? value.toString() : value);
+            this.body = body;
+        }
     }
 
     /**
@@ -207,8 +202,8 @@ public class DSL extends GroovyObjectSupport implements Serializable {
      * <p>
      * This handling is designed after how Java defines literal syntax for {@link Annotation}.
      */
-    private NamedArgsAndClosure parseArgs(StepDescriptor d, Object arg) {
-        boolean expectsBlock = d.takesImplicitBlockArgument();
+    private NamedArgsAndClosure parseArgs(StepDispatchTable.Function f, Object arg) {
+        boolean expectsBlock = f.expectsBlock;
 
         if (arg instanceof Map)
             return new NamedArgsAndClosure((Map) arg, null);
@@ -216,34 +211,35 @@ public class DSL extends GroovyObjectSupport implements Serializable {
             return new NamedArgsAndClosure(Collections.<String,Object>emptyMap(),(Closure)arg);
 
         if (arg instanceof Object[]) {// this is how Groovy appears to pack argument list into one Object for invokeMethod
-            List a = Arrays.asList((Object[])arg);
-            if (a.size()==0)
+            Object[] a = (Object[])arg;
+            int len = a.length;
+            if (len==0)
                 return new NamedArgsAndClosure(Collections.<String,Object>emptyMap(),null);
 
             Closure c=null;
 
-            Object last = a.get(a.size()-1);
+            Object last = a[len-1];
             if (last instanceof Closure && expectsBlock) {
                 c = (Closure)last;
-                a = a.subList(0,a.size()-1);
+                len--;
             }
 
-            if (a.size()==1 && a.get(0) instanceof Map) {
+            if (len==1 && a[0] instanceof Map) {
                 // this is how Groovy passes in Map
-                return new NamedArgsAndClosure((Map)a.get(0),c);
+                return new NamedArgsAndClosure((Map)a[0],c);
             }
 
-            switch (a.size()) {
+            switch (len) {
             case 0:
                 return new NamedArgsAndClosure(Collections.<String,Object>emptyMap(),c);
             case 1:
-                return new NamedArgsAndClosure(Collections.singletonMap("value",a.get(0)),c);
+                return new NamedArgsAndClosure(a[0],c);
             default:
-                throw new IllegalArgumentException("Expected named arguments but got "+a);
+                throw new IllegalArgumentException("Expected named arguments but got "+Arrays.asList(a).subList(0,len));
             }
         }
 
-        return new NamedArgsAndClosure(Collections.singletonMap("value",arg),null);
+        return new NamedArgsAndClosure(arg,null);
     }
 
     /**
@@ -60,7 +60,7 @@ final class FlowHead implements Serializable {
     private /*almost final except for serialization*/ int id;
     private /*almost final except for serialization*/ transient CpsFlowExecution execution;
 
-    private FlowNode head; // TODO: rename to node
+    private volatile FlowNode head; // TODO: rename to node
 
     FlowHead(CpsFlowExecution execution, int id) {
         this.id = id;
@@ -94,12 +94,14 @@ final class FlowHead implements Serializable {
 
     void newStartNode(BlockStartNode n) throws IOException {
         this.head = execution.startNodes.push(n);
+        execution.headsChanged();
         execution.storage.storeNode(head);
     }
 
     void setNewHead(FlowNode v) {
         try {
             this.head = v;
+            execution.headsChanged();
             execution.storage.storeNode(head);
 
             CpsVmThread c = CpsVmThread.current();
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.cps;
+
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Maps function names to {@link StepDescriptor}s for {@link DSL}, along with what it needs to know to bind arguments.
+ *
+ * <p>
+ * A single table is shared by all the executions, and it is rebuilt only when the set of step descriptors changes,
+ * such as when a plugin is dynamically loaded, instead of once per {@link DSL} instance
+ * (which happens every time a program is loaded, since the table cannot be serialized.)
+ */
+/*package*/ final class StepDispatchTable {
+    /**
+     * The descriptor list this table was built from, and its size at that point.
+     * Extensions only get added to this list, so when neither changes, the table is current.
+     */
+    private final List<StepDescriptor> source;
+    private final int size;
+
+    private final Map<String,Function> functions;
+
+    private StepDispatchTable(List<StepDescriptor> source) {
+        this.source = source;
+        this.size = source.size();
+        Map<String,Function> m = new TreeMap<String,Function>();
+        for (StepDescriptor d : source) {
+            m.put(d.getFunctionName(), new Function(d));
+        }
+        this.functions = Collections.unmodifiableMap(m);
+    }
+
+    /**
+     * Finds the step of the given name, or null.
+     */
+    Function get(String name) {
+        return functions.get(name);
+    }
+
+    Set<String> getFunctionNames() {
+        return functions.keySet();
+    }
+
+    /**
+     * A step callable from {@link DSL}.
+     */
+    static final class Function {
+        final StepDescriptor descriptor;
+        /**
+         * {@link StepDescriptor#takesImplicitBlockArgument()}
+         */
+        final boolean expectsBlock;
+        /**
+         * Whether the step creates a block of nodes even without a closure.
+         * TODO: generalize the notion of Step taking over the FlowNode creation.
+         * see https://trello.com/c/v6Pbwqxj/13-allowing-steps-to-build-flownodes
+         */
+        final boolean alwaysBlock;
+
+        Function(StepDescriptor d) {
+            this.descriptor = d;
+            this.expectsBlock = d.takesImplicitBlockArgument();
+            this.alwaysBlock = d instanceof ParallelStep.DescriptorImpl;
+        }
+    }
+
+    /**
+     * Returns the table for the current set of step descriptors.
+     */
+    static StepDispatchTable get() {
+        List<StepDescriptor> all = StepDescriptor.all();
+        StepDispatchTable t = current;
+        if (t==null || t.source!=all || t.size!=all.size()) {
+            current = t = new StepDispatchTable(all);
+        }
+        return t;
+    }
+
+    private static volatile StepDispatchTable current;
+}
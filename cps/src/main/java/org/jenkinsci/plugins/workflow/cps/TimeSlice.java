@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.cps;
+
+import com.cloudbees.groovy.cps.Continuable;
+import com.cloudbees.groovy.cps.NonCPS;
+import com.cloudbees.groovy.cps.Outcome;
+import org.codehaus.groovy.ast.AnnotationNode;
+import org.codehaus.groovy.ast.ClassCodeVisitorSupport;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.MethodNode;
+import org.codehaus.groovy.ast.VariableScope;
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.ClassExpression;
+import org.codehaus.groovy.ast.expr.ClosureExpression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.DoWhileStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.ForStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.ast.stmt.WhileStatement;
+import org.codehaus.groovy.classgen.GeneratorContext;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilePhase;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Lets a CPS thread that keeps running past {@link CpsThreadGroup#TIME_SLICE} give way to the other threads.
+ *
+ * <p>
+ * {@link CpsThreadGroup} can only switch threads between chunks, and a chunk only ends when the thread
+ * waits for a step. So {@link Customizer} makes every loop iteration and every closure call of the script
+ * go through {@link #check()}, which suspends the thread once the time slice is used up.
+ * The thread stays runnable and picks up where it left off on its next turn.
+ */
+@Restricted(NoExternalUse.class)
+public final class TimeSlice {
+    private TimeSlice() {}
+
+    /**
+     * Called by the transformed script. Does nothing unless the current run of the program is out of time.
+     */
+    public static void check() {
+        CpsThread t = CpsThread.current();
+        if (t==null || !t.group.isOutOfTime())
+            return;
+        if (!isCalledByInterpreter())
+            return;     // we cannot suspend regular Java/Groovy code, such as @NonCPS methods
+        Continuable.suspend(YIELD);
+    }
+
+    /**
+     * Checks that we are called from the CPS interpreter, as opposed to code that runs natively.
+     */
+    private static boolean isCalledByInterpreter() {
+        StackTraceElement[] trace = new Throwable().getStackTrace();
+        for (int i=2; i<trace.length; i++) {
+            String c = trace[i].getClassName();
+            if (c.startsWith("sun.reflect.") || c.startsWith("java.lang.reflect.") || c.startsWith("java.lang.invoke.") || c.startsWith("jdk.internal.")
+             || c.startsWith("org.codehaus.groovy.") || c.startsWith("groovy.lang."))
+                continue;   // the way the call got dispatched
+            return c.startsWith("com.cloudbees.groovy.cps.");
+        }
+        return false;
+    }
+
+    /**
+     * Ends the chunk but leaves the thread runnable.
+     */
+    private static final ThreadTask YIELD = new ThreadTask() {
+        @Override
+        protected ThreadTaskResult eval(CpsThread cur) {
+            cur.resumeValue = new Outcome(null,null);
+            return ThreadTaskResult.suspendWith(new Outcome(null,null));
+        }
+    };
+
+    /**
+     * Inserts a call to {@link TimeSlice#check()} at the start of every loop body and closure
+     * in the methods that {@link CpsTransformer} transforms, so it has to run before that.
+     */
+    /*package*/ static final class Customizer extends CompilationCustomizer {
+        Customizer() {
+            super(CompilePhase.SEMANTIC_ANALYSIS);
+        }
+
+        @Override
+        public void call(final SourceUnit source, GeneratorContext context, ClassNode classNode) throws CompilationFailedException {
+            ClassCodeVisitorSupport v = new ClassCodeVisitorSupport() {
+                @Override
+                protected SourceUnit getSourceUnit() {
+                    return source;
+                }
+
+                @Override
+                public void visitMethod(MethodNode node) {
+                    if (!node.isAbstract() && !isNonCps(node))
+                        super.visitMethod(node);
+                }
+
+                @Override
+                public void visitWhileLoop(WhileStatement loop) {
+                    loop.setLoopBlock(insert(loop.getLoopBlock()));
+                    super.visitWhileLoop(loop);
+                }
+
+                @Override
+                public void visitDoWhileLoop(DoWhileStatement loop) {
+                    loop.setLoopBlock(insert(loop.getLoopBlock()));
+                    super.visitDoWhileLoop(loop);
+                }
+
+                @Override
+                public void visitForLoop(ForStatement loop) {
+                    loop.setLoopBlock(insert(loop.getLoopBlock()));
+                    super.visitForLoop(loop);
+                }
+
+                @Override
+                public void visitClosureExpression(ClosureExpression closure) {
+                    if (closure.getCode() instanceof BlockStatement)
+                        ((BlockStatement) closure.getCode()).getStatements().add(0, check());
+                    super.visitClosureExpression(closure);
+                }
+            };
+            // constructors and initializers are not transformed, so only methods are visited
+            for (MethodNode m : classNode.getMethods())
+                v.visitMethod(m);
+        }
+
+        private static boolean isNonCps(MethodNode m) {
+            for (AnnotationNode a : m.getAnnotations()) {
+                if (a.getClassNode().getName().equals(NonCPS.class.getName()))
+                    return true;
+            }
+            return false;
+        }
+
+        private static Statement insert(Statement body) {
+            if (body instanceof BlockStatement) {
+                ((BlockStatement) body).getStatements().add(0, check());
+                return body;
+            }
+            BlockStatement b = new BlockStatement(new Statement[] {check(), body}, new VariableScope());
+            b.setSourcePosition(body);
+            return b;
+        }
+
+        private static Statement check() {
+            MethodCallExpression call = new MethodCallExpression(
+                    new ClassExpression(ClassHelper.make(TimeSlice.class)), "check", ArgumentListExpression.EMPTY_ARGUMENTS);
+            call.setImplicitThis(false);
+            return new ExpressionStatement(call);
+        }
+    }
+}
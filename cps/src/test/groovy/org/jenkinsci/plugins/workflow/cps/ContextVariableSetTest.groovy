@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.cps
+
+import org.junit.Test
+
+class ContextVariableSetTest {
+    /**
+     * An override hides what the enclosing blocks have of the same type, without changing what they see themselves.
+     */
+    @Test
+    void nearestOverrideWins() {
+        def outer = ContextVariableSet.from(null, ["outer", 1])
+        assert outer.get(String)=="outer"   // answered, and remembered, before the nested set exists
+
+        def inner = ContextVariableSet.from(outer, ["inner", "second"])
+        def innermost = ContextVariableSet.from(inner, [2L])
+        assert ContextVariableSet.from(innermost, []).is(innermost)
+
+        [innermost, roundtrip(innermost)].each { s ->
+            assert s.get(Long)==2L
+            assert s.get(String)=="inner"   // nearest set first, and the first value within it
+            assert s.get(Integer)==1
+            assert s.get(Number)==2L
+            assert s.get(Object)==2L
+            assert s.get(Date)==null
+        }
+        assert inner.get(String)=="inner"
+        assert inner.get(Number)==1
+        assert outer.get(String)=="outer"
+        assert outer.get(Object)=="outer"
+    }
+
+    private static ContextVariableSet roundtrip(ContextVariableSet s) {
+        def baos = new ByteArrayOutputStream()
+        new ObjectOutputStream(baos).writeObject(s)
+        return (ContextVariableSet) new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readObject()
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.cps
+
+import org.jenkinsci.plugins.workflow.flow.GraphListener
+import org.jenkinsci.plugins.workflow.graph.FlowEndNode
+import org.jenkinsci.plugins.workflow.graph.FlowNode
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep
+import org.junit.Test
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+class CpsThreadGroupTest extends AbstractCpsFlowTest {
+    /**
+     * Requests made before the scheduled run starts share it, and one made while it runs gets a run of its own.
+     */
+    @Test
+    void scheduleRunCoalesces() {
+        createExecution(new CpsFlowDefinition("semaphore 'coalesce'"))
+        exec.start()
+        exec.waitForSuspension()
+        CpsThreadGroup g = exec.programPromise.get()
+
+        Future<?> during = null
+        exec.addListener({ FlowNode node ->
+            if (node instanceof FlowEndNode)
+                during = g.scheduleRun()
+        } as GraphListener)
+
+        // keep the program busy while requests come in
+        def busy = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        g.runner.submit({ busy.countDown(); release.await() } as Runnable)
+        assert busy.await(10, TimeUnit.SECONDS)
+
+        SemaphoreStep.success("coalesce/1", null)
+        List<Future<?>> requests = Collections.synchronizedList([])
+        def threads = (1..5).collect { Thread.start { requests << g.scheduleRun() } }
+        threads*.join()
+        assert requests.size()==5
+        requests.each { assert it.is(requests[0]) }
+        assert !requests[0].isDone()
+
+        release.countDown()
+        requests[0].get(10, TimeUnit.SECONDS)
+        assert during!=null && !during.is(requests[0])
+        during.get(10, TimeUnit.SECONDS)
+        assert exec.isComplete()
+    }
+
+    /**
+     * The program state is written by other threads, but those asking for it to be saved, or waiting for the program
+     * to suspend, only get going once it is on disk.
+     */
+    @Test
+    void waitForStateOnDisk() {
+        createExecution(new CpsFlowDefinition("semaphore 'saveA'; semaphore 'saveB'"))
+        exec.start()
+        exec.waitForSuspension()
+        CpsThreadGroup g = exec.programPromise.get()
+
+        def release = blockWriters()
+        def saved = SemaphoreStep.getContext("saveA/1").saveState()
+        Thread.sleep(500)
+        assert !saved.isDone()
+        release.countDown()
+        saved.get(10, TimeUnit.SECONDS)
+        assert g.getPendingWrite().isDone()
+        assert exec.getProgramDataFile().isFile()
+
+        release = blockWriters()
+        SemaphoreStep.success("saveA/1", null)
+        def waiting = Thread.start { exec.waitForSuspension() }
+        waiting.join(500)
+        assert waiting.isAlive()
+        release.countDown()
+        waiting.join(10000)
+        assert !waiting.isAlive()
+        assert g.getPendingWrite()==null || g.getPendingWrite().isDone()
+
+        SemaphoreStep.success("saveB/1", null)
+        exec.waitForSuspension()
+        assert exec.isComplete()
+    }
+
+    /**
+     * Keeps all the threads writing program states busy until the returned latch is released.
+     */
+    private static CountDownLatch blockWriters() {
+        ThreadPoolExecutor writer = CpsThreadGroup.WRITER
+        def busy = new CountDownLatch(writer.corePoolSize)
+        def release = new CountDownLatch(1)
+        writer.corePoolSize.times {
+            writer.execute({ busy.countDown(); release.await() } as Runnable)
+        }
+        assert busy.await(10, TimeUnit.SECONDS)
+        return release
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.cps
+
+import org.junit.Test
+
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class CpsVmExecutorServiceTest extends AbstractCpsFlowTest {
+    /**
+     * Each group gets its tasks run one at a time and in order, even though the groups share the threads.
+     */
+    @Test
+    void lanesStaySerial() {
+        def groups = (1..4).collect { new CpsThreadGroup(createExecution(new CpsFlowDefinition("echo 'unused'"))) }
+        Map<CpsThreadGroup,List<Integer>> ran = [:]
+        Map<CpsThreadGroup,AtomicInteger> running = [:]
+        groups.each { ran[it] = Collections.synchronizedList([]); running[it] = new AtomicInteger() }
+        def problems = Collections.synchronizedList([])
+
+        List<Future<?>> futures = []
+        (0..<50).each { i ->
+            groups.each { g ->
+                futures << g.runner.submit({
+                    if (running[g].incrementAndGet()!=1)
+                        problems << "two tasks of a group at once"
+                    if (!CpsThreadGroup.current().is(g))
+                        problems << "ran as ${CpsThreadGroup.current()} rather than ${g}"
+                    Thread.sleep(1)
+                    ran[g] << i
+                    running[g].decrementAndGet()
+                } as Runnable)
+            }
+        }
+        futures.each { it.get(30, TimeUnit.SECONDS) }
+
+        assert problems.isEmpty()
+        groups.each { assert ran[it]==(0..<50).toList() }
+        assert CpsThreadGroup.current()==null
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.cps
+
+import hudson.model.Run
+import org.jenkinsci.plugins.workflow.graph.FlowEndNode
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep
+import org.junit.Test
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+class FlowHeadTest extends AbstractCpsFlowTest {
+    /**
+     * Heads come and go while others look at them, without any of them taking a lock.
+     */
+    @Test
+    void concurrentReaders() {
+        createExecution(new CpsFlowDefinition("semaphore 'readers'"))
+        exec.start()
+        exec.waitForSuspension()
+        FlowHead first = exec.getFirstHead()
+
+        def problems = Collections.synchronizedList([])
+        def done = new AtomicBoolean()
+        def readers = (1..4).collect {
+            Thread.start {
+                try {
+                    while (!done.get()) {
+                        def heads = exec.getCurrentHeads()
+                        if (heads.isEmpty() || heads.contains(null))
+                            problems << "unexpected heads: ${heads}"
+                        if (!exec.isCurrentHead(first.get()))
+                            problems << "lost ${first.get()}"
+                        Run.XSTREAM.toXML(exec)
+                    }
+                } catch (Throwable t) {
+                    problems << t
+                }
+            }
+        }
+        1000.times {
+            FlowHead h = first.fork()
+            assert exec.getFlowHead(h.getId()).is(h)
+            exec.removeHead(h)
+        }
+        done.set(true)
+        readers*.join()
+        assert problems.isEmpty()
+        assert exec.getCurrentHeads()==[first.get()]
+
+        SemaphoreStep.success("readers/1", null)
+        exec.waitForSuspension()
+        assert exec.isComplete()
+    }
+
+    /**
+     * At the end, only the first head is left, pointing to the end node, and there is always some head meanwhile.
+     */
+    @Test
+    void programEndTrimsHeads() {
+        createExecution(new CpsFlowDefinition("parallel(a: {semaphore 'endA'}, b: {semaphore 'endB'})"))
+        exec.start()
+        exec.waitForSuspension()
+        assert exec.getCurrentHeads().size()>1
+
+        def problems = Collections.synchronizedList([])
+        def reader = Thread.start {
+            while (!exec.isComplete()) {
+                if (exec.getCurrentHeads().isEmpty())
+                    problems << "no head"
+            }
+        }
+        SemaphoreStep.success("endA/1", null)
+        SemaphoreStep.success("endB/1", null)
+        exec.waitForSuspension()
+        reader.join()
+        assert problems.isEmpty()
+
+        assert exec.isComplete()
+        def heads = exec.getCurrentHeads()
+        assert heads.size()==1
+        assert heads[0] instanceof FlowEndNode
+        assert exec.isCurrentHead(heads[0])
+        assert exec.getFirstHead().get().is(heads[0])
+    }
+}
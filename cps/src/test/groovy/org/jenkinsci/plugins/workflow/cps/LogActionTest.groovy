@@ -51,6 +51,13 @@ echo("Hello I'm Gilbert")
         assert exec.isComplete()
         FlowNode atom = exec.currentHeads[0].parents[0]
         LogActionImpl la = atom.getAction(LogAction)
-        assert la.logFile.text=="Hello I'm Gilbert\n"
+        def all = new ByteArrayOutputStream()
+        assert la.writeRawLogTo(0, all)==18
+        assert all.toString()=="Hello I'm Gilbert\n"
+
+        def buf = new ByteArrayOutputStream()
+        assert la.writeRawLogTo(6, buf)==18
+        assert buf.toString()=="I'm Gilbert\n"
+        assert !la.logFile.exists() // kept in the RunLogStore instead
     }
 }
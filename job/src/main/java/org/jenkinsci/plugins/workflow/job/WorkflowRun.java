@@ -59,8 +59,6 @@ import java.lang.reflect.Field;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -71,7 +69,6 @@ import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 import jenkins.model.Jenkins;
 import jenkins.model.lazy.BuildReference;
 import jenkins.model.lazy.LazyBuildMixIn;
@@ -84,7 +81,11 @@ import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.flow.GraphListener;
 import org.jenkinsci.plugins.workflow.graph.FlowEndNode;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.support.actions.LogActionImpl;
+import org.jenkinsci.plugins.workflow.support.actions.RunLogStore;
+import org.jenkinsci.plugins.workflow.support.storage.FlowNodeCache;
 import org.jenkinsci.plugins.workflow.support.visualization.table.FlowGraphTable;
+import org.jenkinsci.plugins.workflow.support.visualization.table.LiveFlowGraphTable;
 import org.kohsuke.stapler.framework.io.LargeText;
 
 @SuppressWarnings("SynchronizeOnNonFinalField")
@@ -109,13 +110,22 @@ public final class WorkflowRun extends Run<WorkflowJob,WorkflowRun> implements Q
     private transient AtomicBoolean completed;
     /** Jenkins instance in effect when {@link #waitForCompletion} was last called. */
     private transient Jenkins jenkins;
-    /** map from node IDs to log positions from which we should copy text */
-    private Map<String,Long> logsToCopy;
+    /**
+     * Map from node IDs to log positions from which we should copy text.
+     * Only found in builds started before step output got forwarded to the console as it is written,
+     * see {@link org.jenkinsci.plugins.workflow.support.ConsoleForwardingOutputStream}.
+     */
+    private @CheckForNull Map<String,Long> logsToCopy;
 
     List<SCMCheckout> checkouts;
     // TODO could use a WeakReference to reduce memory, but that complicates how we add to it incrementally; perhaps keep a List<WeakReference<ChangeLogSet<?>>>
     private transient List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets;
 
+    /**
+     * Kept up to date while the flow is running, so that it need not be rebuilt every time it is looked at.
+     */
+    private transient LiveFlowGraphTable liveFlowGraph;
+
     public WorkflowRun(WorkflowJob job) throws IOException {
         super(job);
         //System.err.printf("created %s @%h%n", this, this);
@@ -150,7 +160,23 @@ public final class WorkflowRun extends Run<WorkflowJob,WorkflowRun> implements Q
      * Exposed to URL space via Stapler.
      */
     public FlowGraphTable getFlowGraph() {
-        FlowGraphTable t = new FlowGraphTable(getExecution());
+        FlowExecution exec = getExecution();
+        LiveFlowGraphTable live = null;
+        synchronized (this) {
+            if (exec!=null && !exec.isComplete()) {
+                if (liveFlowGraph==null)
+                    liveFlowGraph = new LiveFlowGraphTable(exec);
+                live = liveFlowGraph;
+            } else {
+                liveFlowGraph = null;
+            }
+        }
+        if (live!=null) {
+            // walks the whole graph the first time, so not while holding the lock of the run; does nothing afterwards
+            live.build();
+            return live;
+        }
+        FlowGraphTable t = new FlowGraphTable(exec);
         t.build();
         return t;
     }
@@ -174,7 +200,6 @@ public final class WorkflowRun extends Run<WorkflowJob,WorkflowRun> implements Q
             execution = definition.create(owner, getAllActions());
             execution.addListener(new GraphL());
             completed = new AtomicBoolean();
-            logsToCopy = new LinkedHashMap<String,Long>();
             checkouts = new LinkedList<SCMCheckout>();
             execution.start();
             executionPromise.set(execution);
@@ -191,7 +216,7 @@ public final class WorkflowRun extends Run<WorkflowJob,WorkflowRun> implements Q
     }
 
     /**
-     * Sleeps until the run is finished, updating log messages periodically.
+     * Sleeps until the run is finished, or Jenkins is shutting down.
      */
     void waitForCompletion() {
         jenkins = Jenkins.getInstance();
@@ -213,68 +238,36 @@ public final class WorkflowRun extends Run<WorkflowJob,WorkflowRun> implements Q
                         LOGGER.log(Level.WARNING, null, x2);
                     }
                 }
-                copyLogs();
             }
         }
     }
 
-    @GuardedBy("completed")
+    /**
+     * Catches up with the step logs of a build started before their output got forwarded as it is written.
+     * Anything written from now on is forwarded, so we no longer need to keep track of positions.
+     */
     private void copyLogs() {
-        if (logsToCopy == null) { // finished
+        if (logsToCopy == null) {
             return;
         }
-        Iterator<Map.Entry<String,Long>> it = logsToCopy.entrySet().iterator();
-        boolean modified = false;
-        while (it.hasNext()) {
-            Map.Entry<String,Long> entry = it.next();
-            FlowNode node;
+        for (Map.Entry<String,Long> entry : logsToCopy.entrySet()) {
             try {
-                node = execution.getNode(entry.getKey());
-            } catch (IOException x) {
-                LOGGER.log(Level.WARNING, null, x);
-                it.remove();
-                modified = true;
-                continue;
-            }
-            if (node == null) {
-                LOGGER.log(Level.WARNING, "no such node {0}", entry.getKey());
-                it.remove();
-                modified = true;
-                continue;
-            }
-            LogAction la = node.getAction(LogAction.class);
-            if (la != null) {
-                AnnotatedLargeText<? extends FlowNode> logText = la.getLogText();
-                try {
-                    long old = entry.getValue();
-                    long revised = writeLogTo(logText, old, listener.getLogger());
-                    if (revised != old) {
-                        entry.setValue(revised);
-                        modified = true;
-                    }
-                    if (logText.isComplete()) {
-                        writeLogTo(logText, entry.getValue(), listener.getLogger()); // defend against race condition?
-                        assert !node.isRunning() : "LargeText.complete yet " + node + " claims to still be running";
-                        it.remove();
-                        modified = true;
-                    }
-                } catch (IOException x) {
-                    LOGGER.log(Level.WARNING, null, x);
-                    it.remove();
-                    modified = true;
+                FlowNode node = execution.getNode(entry.getKey());
+                if (node == null) {
+                    LOGGER.log(Level.WARNING, "no such node {0}", entry.getKey());
+                    continue;
+                }
+                LogAction la = node.getAction(LogAction.class);
+                if (la instanceof LogActionImpl) {
+                    ((LogActionImpl) la).writeRawLogTo(entry.getValue(), listener.getLogger());
+                } else if (la != null) {
+                    writeLogTo(la.getLogText(), entry.getValue(), listener.getLogger());
                 }
-            } else if (!node.isRunning()) {
-                it.remove();
-                modified = true;
-            }
-        }
-        if (modified) {
-            try {
-                save();
             } catch (IOException x) {
                 LOGGER.log(Level.WARNING, null, x);
             }
         }
+        logsToCopy = null;
     }
     /**
      * Equivalent to calling {@link LargeText#writeLogTo(long, OutputStream)} without the unwanted override in {@link AnnotatedLargeText} that wraps in a {@link PlainTextConsoleOutputStream}.
@@ -332,6 +325,7 @@ public final class WorkflowRun extends Run<WorkflowJob,WorkflowRun> implements Q
                     listener = new StreamBuildListener(new NullStream());
                 }
                 completed = new AtomicBoolean();
+                copyLogs();
                 Queue.getInstance().schedule(new AfterRestartTask(this), 0);
             }
         }
@@ -341,6 +335,11 @@ public final class WorkflowRun extends Run<WorkflowJob,WorkflowRun> implements Q
         }
     }
 
+    @Override public void delete() throws IOException {
+        super.delete();
+        FlowNodeCache.get().invalidate(getRootDir());
+    }
+
     // Overridden since super version has an unwanted assertion about this.state, which we do not use.
     @Override public void setResult(Result r) {
         if (result == null || r.isWorseThan(result)) {
@@ -362,6 +361,7 @@ public final class WorkflowRun extends Run<WorkflowJob,WorkflowRun> implements Q
         }
         listener.finished(getResult());
         listener.closeQuietly();
+        RunLogStore.close(getRootDir());
         logsToCopy = null;
         try {
             save();
@@ -567,10 +567,6 @@ public final class WorkflowRun extends Run<WorkflowJob,WorkflowRun> implements Q
 
     private final class GraphL implements GraphListener {
         @Override public void onNewHead(FlowNode node) {
-            synchronized (completed) {
-                copyLogs();
-                logsToCopy.put(node.getId(), 0L);
-            }
             listener.getLogger().println("Running: " + node.getDisplayName());
             if (node instanceof FlowEndNode) {
                 finish(((FlowEndNode) node).getResult());
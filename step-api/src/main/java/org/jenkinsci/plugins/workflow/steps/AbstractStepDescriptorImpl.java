@@ -1,12 +1,17 @@
 package org.jenkinsci.plugins.workflow.steps;
 
+import java.lang.ref.SoftReference;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import javax.inject.Inject;
 import org.codehaus.groovy.reflection.ReflectionCache;
 import org.kohsuke.stapler.ClassDescriptor;
@@ -65,43 +70,113 @@ public abstract class AbstractStepDescriptorImpl extends StepDescriptor {
     /**
      * Creates an instance of a class via {@link DataBoundConstructor}.
      */
+    @SuppressWarnings("unchecked")
     public static <T> T instantiate(Class<? extends T> clazz, Map<String, Object> arguments) throws Exception {
-        ClassDescriptor d = new ClassDescriptor(clazz);
-
-        String[] names = d.loadConstructorParamNames();
-        Constructor<T> c = findConstructor(clazz, names.length);
-        Object[] args = buildArguments(arguments, c.getParameterTypes(), names, true);
-
-        T o  = c.newInstance(args);
-        injectSetters(o, arguments);
-        return o;
+        return (T) Binder.of(clazz).instantiate(arguments);
     }
 
     /**
-     * Injects via {@link DataBoundSetter}
+     * What {@link #instantiate(Class, Map)} needs to know about a class,
+     * which is looked up reflectively once per class rather than on every call.
      */
-    private static void injectSetters(Object o, Map<String, Object> arguments) throws Exception {
-        for (Class<?> c = o.getClass(); c!=null; c=c.getSuperclass()) {
-            for (Field f : c.getDeclaredFields()) {
-                if (f.isAnnotationPresent(DataBoundSetter.class)) {
-                    f.setAccessible(true);
-                        if (arguments.containsKey(f.getName())) {
-                            Object v = arguments.get(f.getName());
-                            f.set(o, v);
-                        }
+    private static final class Binder {
+        private final Constructor<?> constructor;
+        private final Class<?>[] types;
+        private final String[] names;
+
+        /**
+         * {@link DataBoundSetter} fields and methods, {@link Field} or {@link Method}, already made accessible.
+         */
+        private final List<AccessibleObject> setters = new ArrayList<AccessibleObject>();
+        /**
+         * Parameter types and names of each {@link Method} in {@link #setters}, or null for a {@link Field}.
+         */
+        private final List<Class<?>[]> setterTypes = new ArrayList<Class<?>[]>();
+        private final List<String[]> setterNames = new ArrayList<String[]>();
+
+        private Binder(Class<?> clazz) {
+            names = new ClassDescriptor(clazz).loadConstructorParamNames();
+            constructor = findConstructor(clazz, names.length);
+            types = constructor.getParameterTypes();
+
+            for (Class<?> c = clazz; c!=null; c=c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    if (f.isAnnotationPresent(DataBoundSetter.class)) {
+                        f.setAccessible(true);
+                        setters.add(f);
+                        setterTypes.add(null);
+                        setterNames.add(null);
+                    }
+                }
+                for (Method m : c.getDeclaredMethods()) {
+                    if (m.isAnnotationPresent(DataBoundSetter.class)) {
+                        m.setAccessible(true);
+                        setters.add(m);
+                        setterTypes.add(m.getParameterTypes());
+                        setterNames.add(ClassDescriptor.loadParameterNames(m));
+                    }
+                }
+            }
+        }
+
+        Object instantiate(Map<String, Object> arguments) throws Exception {
+            Object o = constructor.newInstance(buildArguments(arguments, types, names, true));
+            injectSetters(o, arguments);
+            return o;
+        }
+
+        /**
+         * Injects via {@link DataBoundSetter}
+         */
+        private void injectSetters(Object o, Map<String, Object> arguments) throws Exception {
+            for (int i = 0; i < setters.size(); i++) {
+                AccessibleObject s = setters.get(i);
+                if (s instanceof Field) {
+                    Field f = (Field) s;
+                    if (arguments.containsKey(f.getName())) {
+                        Object v = arguments.get(f.getName());
+                        f.set(o, v);
+                    }
+                } else {
+                    Object[] args = buildArguments(arguments, setterTypes.get(i), setterNames.get(i), false);
+                    if (args!=null)
+                        ((Method) s).invoke(o, args);
                 }
             }
-            for (Method m : c.getDeclaredMethods()) {
-                if (m.isAnnotationPresent(DataBoundSetter.class)) {
-                    String[] names = ClassDescriptor.loadParameterNames(m);
-
-                    m.setAccessible(true);
-                        Object[] args = buildArguments(arguments, m.getParameterTypes(), names, false);
-                        if (args!=null)
-                            m.invoke(o, args);
+        }
+
+        /**
+         * Looks up the binder of a class, creating it if need be.
+         * The reflection is done outside the lock, so that one slow class does not hold up every other step;
+         * if two threads race, the binder that got stored first wins.
+         */
+        static Binder of(Class<?> clazz) {
+            Binder b = cached(clazz);
+            if (b!=null)    return b;
+
+            Binder fresh = new Binder(clazz);
+            synchronized (BINDERS) {
+                b = cached(clazz);
+                if (b==null) {
+                    b = fresh;
+                    BINDERS.put(clazz, new SoftReference<Binder>(b));
                 }
+                return b;
             }
         }
+
+        private static Binder cached(Class<?> clazz) {
+            synchronized (BINDERS) {
+                SoftReference<Binder> ref = BINDERS.get(clazz);
+                return ref!=null ? ref.get() : null;
+            }
+        }
+
+        /**
+         * Binders by class. Keys are weak and values are soft,
+         * since a binder refers back to its class and would otherwise keep the class loader of an unloaded plugin alive.
+         */
+        private static final Map<Class<?>,SoftReference<Binder>> BINDERS = new WeakHashMap<Class<?>,SoftReference<Binder>>();
     }
 
     // TODO: this is Groovy specific and should be removed from here
@@ -302,6 +302,10 @@ final class STMExecution extends FlowExecution {
     @Override public void addListener(GraphListener listener) {
         listeners.add(listener);
     }
+
+    @Override public void removeListener(GraphListener listener) {
+        listeners.remove(listener);
+    }
     
     @Override public void finish(Result r) throws IOException, InterruptedException {
         LOGGER.log(Level.FINE, "finishing with {0}", r);
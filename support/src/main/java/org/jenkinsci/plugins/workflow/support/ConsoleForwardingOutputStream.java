@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support;
+
+import hudson.console.LineTransformationOutputStream;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Forwards what a step writes to its own log into the console of the whole build as it is written,
+ * so that the build does not have to poll the logs of all the running steps.
+ * Use with a {@link org.apache.commons.io.output.TeeOutputStream} to write to both.
+ *
+ * <p>
+ * Lines are forwarded each in a single write, so that steps running in parallel
+ * interleave their output line by line rather than mid-line. An incomplete line is held back,
+ * even across {@link #flush()}, until the step writes the rest of it, completes, or the stream is closed.
+ * The console is looked up for every line, since the build may switch to a new one, for example when Jenkins shuts down.
+ */
+public class ConsoleForwardingOutputStream extends LineTransformationOutputStream {
+    private final FlowExecutionOwner owner;
+
+    public ConsoleForwardingOutputStream(FlowExecutionOwner owner) {
+        this.owner = owner;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        PrintStream console = owner.getConsole();
+        console.write(b, 0, len);
+        console.flush();
+    }
+
+    /**
+     * Forwards an incomplete line, if any, for when the step is not going to write the rest of it, such as when it completes.
+     */
+    public void forwardIncompleteLine() throws IOException {
+        forceEol();
+    }
+}
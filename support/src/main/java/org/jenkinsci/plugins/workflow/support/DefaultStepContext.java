@@ -31,12 +31,17 @@ import hudson.model.Job;
 import hudson.model.Node;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
 import hudson.util.StreamTaskListener;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
@@ -52,11 +57,100 @@ public abstract class DefaultStepContext extends StepContext {
      */
     private transient TaskListener listener;
 
+    /**
+     * Forwards what gets written to {@link #listener} into the console of the build.
+     */
+    private transient ConsoleForwardingOutputStream console;
+
+    /**
+     * Values already looked up by {@link #get}, so that injecting several parameters into a step
+     * does not repeat expensive computations such as {@link Run#getEnvironment(TaskListener)}.
+     *
+     * <p>
+     * Entries stay valid for the lifetime of this context, since the context variables of a step do not change while it runs,
+     * except that {@link Computer}, {@link Node} and {@link Launcher} are recomputed once the channel of the computer changes,
+     * for example because the slave reconnected, or was removed and added back with a new computer.
+     * Nulls are never cached, as the value might become available later.
+     */
+    private transient Map<Class<?>,Object> cache;
+    /**
+     * Channel of the cached {@link Computer}, which the cached {@link Node} and {@link Launcher} were derived from.
+     */
+    private transient VirtualChannel cachedChannel;
+
     /**
      * Uses {@link #doGet} but automatically translates certain kinds of objects into others.
+     * Results are cached, see {@link #cache}.
      * @inheritDoc
      */
     @Override public final <T> T get(Class<T> key) throws IOException, InterruptedException {
+        Map<Class<?>,Object> c = cache();
+        boolean onChannel = key == Computer.class || key == Node.class || key == Launcher.class;
+        VirtualChannel ch = onChannel ? checkChannel(c) : null;
+        Object v;
+        synchronized (c) {
+            v = c.get(key);
+        }
+        if (v == null) {
+            v = compute(key);
+            if (v == null) {
+                return null;
+            }
+            synchronized (c) {
+                if (!onChannel || ch == cachedChannel) {
+                    c.put(key, v);
+                }
+            }
+        }
+        if (v instanceof EnvVars) {
+            // mutable, so each caller gets its own copy
+            v = new EnvVars((EnvVars) v);
+        }
+        return key.cast(v);
+    }
+
+    private synchronized Map<Class<?>,Object> cache() {
+        if (cache == null) {
+            cache = new HashMap<Class<?>,Object>();
+        }
+        return cache;
+    }
+
+    /**
+     * Drops the cached values derived from the {@link Computer}, and the computer itself, if its channel has changed.
+     * A computer that is gone has no channel any more, so a new one gets looked up.
+     * @return the current channel
+     */
+    private @CheckForNull VirtualChannel checkChannel(Map<Class<?>,Object> c) throws IOException, InterruptedException {
+        while (true) {
+            Computer computer;
+            synchronized (c) {
+                computer = (Computer) c.get(Computer.class);
+            }
+            boolean cached = computer != null;
+            if (!cached) {
+                computer = compute(Computer.class);
+            }
+            VirtualChannel ch = computer != null ? computer.getChannel() : null;
+            synchronized (c) {
+                if (ch != cachedChannel) {
+                    c.remove(Computer.class);
+                    c.remove(Node.class);
+                    c.remove(Launcher.class);
+                    cachedChannel = ch;
+                    if (cached) {
+                        continue; // look up the computer again
+                    }
+                }
+                if (!cached && computer != null) {
+                    c.put(Computer.class, computer);
+                }
+                return ch;
+            }
+        }
+    }
+
+    private <T> T compute(Class<T> key) throws IOException, InterruptedException {
         T value = doGet(key);
         if (value != null) {
             return value;
@@ -69,7 +163,8 @@ public abstract class DefaultStepContext extends StepContext {
                     getNode().addAction(la);
                 }
 
-                listener = new StreamTaskListener(new FileOutputStream(la.getLogFile(), true));
+                console = new ConsoleForwardingOutputStream(getExecution().getOwner());
+                listener = new StreamTaskListener(new TeeOutputStream(la.openStream(), console));
             }
             return key.cast(listener);
         } else if (key == Node.class) {
@@ -104,6 +199,25 @@ public abstract class DefaultStepContext extends StepContext {
         }
     }
 
+    /**
+     * Writes out whatever the step has sent to its {@link TaskListener} and is still buffered,
+     * including an incomplete last line, when the step completes.
+     */
+    protected void flushListener() {
+        TaskListener l = listener;
+        if (l != null) {
+            l.getLogger().flush();
+        }
+        ConsoleForwardingOutputStream c = console;
+        if (c != null) {
+            try {
+                c.forwardIncompleteLine();
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "failed to forward the output of " + this, x);
+            }
+        }
+    }
+
     /**
      * The actual logic of {@link #get}, such as retrieving overrides passed to {@link #invokeBodyLater}.
      */
@@ -119,4 +233,5 @@ public abstract class DefaultStepContext extends StepContext {
      */
     protected abstract @Nonnull FlowNode getNode() throws IOException;
 
+    private static final Logger LOGGER = Logger.getLogger(DefaultStepContext.class.getName());
 }
@@ -30,15 +30,25 @@ import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.actions.FlowNodeAction;
 import org.jenkinsci.plugins.workflow.actions.LogAction;
 import hudson.console.AnnotatedLargeText;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.framework.io.ByteBuffer;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 
 /**
- * {@link LogAction} implementation that stores per-node log file under {@link FlowExecutionOwner#getRootDir()}.
+ * {@link LogAction} implementation that stores the log of a node in the {@link RunLogStore} under {@link FlowExecutionOwner#getRootDir()}.
+ *
+ * <p>
+ * Builds from before the store was introduced have a separate file per node instead, which is still used if present.
  *
  * @author Kohsuke Kawaguchi
  */
@@ -62,11 +72,10 @@ public class LogActionImpl extends LogAction implements FlowNodeAction {
     @Override
     public AnnotatedLargeText<? extends FlowNode> getLogText() {
         try {
-            getLogFile();
-            if (!log.exists())
-                return new AnnotatedLargeText<FlowNode>(new ByteBuffer(), getCharset(), !parent.isRunning(), parent);
+            if (getLogFile().exists())
+                return new AnnotatedLargeText<FlowNode>(log, getCharset(), !parent.isRunning(), parent);
 
-            return new AnnotatedLargeText<FlowNode>(log, getCharset(), !parent.isRunning(), parent);
+            return new AnnotatedLargeText<FlowNode>(RunLogStore.forReading(getRootDir()).open(parent.getId()), getCharset(), !parent.isRunning(), parent);
         } catch (IOException e) {
             ByteBuffer buf = new ByteBuffer();
             PrintStream ps = new PrintStream(buf);
@@ -78,14 +87,89 @@ public class LogActionImpl extends LogAction implements FlowNodeAction {
     }
 
     /**
-     * The actual log file.
+     * The separate log file of this node, which only exists in builds from before {@link RunLogStore}.
+     *
+     * @deprecated
+     *      use {@link #getLogText()} or {@link #writeRawLogTo(long, OutputStream)} to read the log.
      */
+    @Deprecated
     public File getLogFile() throws IOException {
         if (log==null)
-            log = new File(parent.getExecution().getOwner().getRootDir(), parent.getId() + ".log");
+            log = new File(getRootDir(), parent.getId() + ".log");
         return log;
     }
 
+    private File getRootDir() throws IOException {
+        return parent.getExecution().getOwner().getRootDir();
+    }
+
+    /**
+     * Opens a stream to append to the log.
+     * What is written is buffered until the stream is flushed, or for a short while, see {@link RunLogStore}.
+     */
+    public OutputStream openStream() throws IOException {
+        if (getLogFile().exists())
+            return new FileOutputStream(log, true);
+
+        final RunLogStore store = RunLogStore.of(getRootDir());
+        final String id = parent.getId();
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                store.append(id, new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                store.append(id, b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                store.flush();
+            }
+        };
+    }
+
+    /**
+     * Copies the log as is from the given byte offset, without decoding it and encoding it back,
+     * and letting the OS do the copying when the destination is a file.
+     *
+     * @return
+     *      the offset to continue from next time.
+     */
+    public long writeRawLogTo(long offset, OutputStream out) throws IOException {
+        File f = getLogFile();
+        if (!f.exists())
+            return RunLogStore.forReading(getRootDir()).writeTo(parent.getId(), offset, out);
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel src = in.getChannel();
+            long end = src.size();
+            WritableByteChannel dst = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out);
+            long pos = offset;
+            while (pos < end) {
+                long n = src.transferTo(pos, end - pos, dst);
+                if (n <= 0)
+                    break;
+                pos += n;
+            }
+            return pos;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Serves the log as plain text, without console notes.
+     */
+    public void doConsoleText(StaplerResponse rsp) throws IOException {
+        rsp.setContentType("text/plain;charset=" + getCharset().name());
+        OutputStream out = rsp.getOutputStream();
+        getLogText().writeLogTo(0, out);
+        out.flush();
+    }
+
     /**
      * Used from <tt>console.jelly</tt> to write annotated log to the given output.
      */
@@ -106,6 +190,11 @@ public class LogActionImpl extends LogAction implements FlowNodeAction {
     }
 
     @Override public String toString() {
-        return "LogActionImpl[" + log + "]";
+        try {
+            File f = getLogFile();
+            return "LogActionImpl[" + (f.exists() ? f : parent.getId() + " in " + new File(getRootDir(), RunLogStore.DATA)) + "]";
+        } catch (IOException e) {
+            return "LogActionImpl[" + parent.getId() + "]";
+        }
     }
 }
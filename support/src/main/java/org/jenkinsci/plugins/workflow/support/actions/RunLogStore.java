@@ -0,0 +1,714 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.actions;
+
+import hudson.console.AnnotatedLargeText;
+import hudson.init.Terminator;
+import jenkins.util.Timer;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.kohsuke.stapler.framework.io.ByteBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Keeps the logs of all the nodes of a run in a single file, instead of one file per node.
+ *
+ * <p>
+ * Whatever a node writes is appended to {@link #DATA} as a chunk,
+ * and {@link #INDEX} records which node the chunk belongs to, where it starts and how long it is.
+ * The log of a single node is reconstructed by following its chunks.
+ * This way a run with thousands of steps has two files and two open file handles rather than thousands of each.
+ *
+ * <p>
+ * Writes are buffered, and consecutive writes from the same node merged into one chunk,
+ * until the buffer fills up, the node's stream is flushed (such as when its step completes),
+ * the logs are read, or {@link #FLUSH_INTERVAL} elapses.
+ * The files are closed when the store has been idle for {@link #IDLE_TIMEOUT},
+ * or to keep the number of stores with open files within {@link #MAX_OPEN}, and reopened as needed.
+ * Writing to a store after its run has been {@linkplain #close(File) closed}, such as from a step that is still winding down,
+ * registers it again, so that what is written still gets flushed.
+ *
+ * <p>
+ * A record in the index is only written after its chunk, so a crash can at worst leave
+ * some unreferenced bytes at the end of the data file, or a truncated record at the end of the index.
+ * Both are cut off when the index is loaded, before anything else gets appended.
+ *
+ * <p>
+ * Stores of completed runs are closed, and the {@link #CACHE_SIZE} most recently read of them kept around
+ * so that looking at their logs does not load the index every time.
+ *
+ * @see LogActionImpl
+ */
+public final class RunLogStore {
+    private final File dir;
+    private final File data;
+    private final File index;
+
+    /**
+     * Chunks of each node, in the order they were written, including those still in {@link #buffer}.
+     */
+    private final Map<String,List<Chunk>> chunks = new HashMap<String,List<Chunk>>();
+
+    /**
+     * Open while the run writes to the store, null otherwise.
+     */
+    private RandomAccessFile dataFile;
+    private DataOutputStream indexFile;
+
+    /**
+     * Bytes written to the store so far, including those still in {@link #buffer}.
+     */
+    private long size;
+    /**
+     * Length of the complete records in {@link #index}.
+     */
+    private volatile long indexLength;
+    /**
+     * Written but not yet on disk, and the index records for them.
+     */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final List<Record> pending = new ArrayList<Record>();
+
+    private volatile long lastUsed;
+
+    /**
+     * Whether this is the store in {@link #STORES}.
+     */
+    private volatile boolean registered;
+
+    /*package*/ RunLogStore(File dir) throws IOException {
+        this.dir = dir;
+        this.data = new File(dir, DATA);
+        this.index = new File(dir, INDEX);
+        if (index.exists())
+            loadIndex();
+        truncate(data, size);
+    }
+
+    private void loadIndex() throws IOException {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(index)));
+        DataInputStream in = new DataInputStream(counter);
+        try {
+            while (true) {
+                String id;
+                long pos;
+                int len;
+                try {
+                    id = in.readUTF();
+                    pos = in.readLong();
+                    len = in.readInt();
+                } catch (EOFException e) {
+                    break;  // end of the index, or a record cut short by a crash
+                }
+                chunksOf(id).add(new Chunk(pos, len));
+                size = Math.max(size, pos+len);
+                indexLength = counter.getByteCount();
+            }
+        } finally {
+            in.close();
+        }
+        truncate(index, indexLength);
+    }
+
+    /**
+     * Cuts off what a crash left behind beyond the given length, so that it does not end up in the middle of what gets appended.
+     */
+    private static void truncate(File f, long length) throws IOException {
+        if (f.length()<=length)
+            return;
+        LOGGER.log(INFO, "Discarding {0} bytes left at the end of {1}", new Object[] {f.length()-length, f});
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private List<Chunk> chunksOf(String id) {
+        List<Chunk> l = chunks.get(id);
+        if (l==null)
+            chunks.put(id, l = new ArrayList<Chunk>());
+        return l;
+    }
+
+    /**
+     * Appends what a node has written.
+     */
+    /*package*/ void append(String id, byte[] b, int off, int len) throws IOException {
+        if (len==0)     return;
+        boolean opened;
+        synchronized (this) {
+            if (!registered)
+                register(this);
+            boolean wasOpen = dataFile!=null;
+            Record last = pending.isEmpty() ? null : pending.get(pending.size()-1);
+            if (last!=null && last.id.equals(id)) {
+                last.chunk.length += len;   // continues the previous write
+            } else {
+                Chunk c = new Chunk(size, len);
+                chunksOf(id).add(c);
+                pending.add(new Record(id, c));
+            }
+            buffer.write(b, off, len);
+            size += len;
+            lastUsed = System.currentTimeMillis();
+            if (buffer.size()>=BUFFER_SIZE)
+                writeOut();
+            opened = !wasOpen && dataFile!=null;
+        }
+        if (opened)
+            evict(this);
+    }
+
+    /**
+     * Writes out what is buffered.
+     */
+    /*package*/ void flush() throws IOException {
+        boolean opened;
+        synchronized (this) {
+            boolean wasOpen = dataFile!=null;
+            writeOut();
+            opened = !wasOpen && dataFile!=null;
+        }
+        if (opened)
+            evict(this);
+    }
+
+    /**
+     * Writes out what is buffered, opening the files if needed.
+     */
+    private synchronized void writeOut() throws IOException {
+        if (pending.isEmpty())  return;
+        if (dataFile==null) {
+            dataFile = new RandomAccessFile(data, "rw");
+            indexFile = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index, true)));
+        }
+        int written = indexFile.size();
+        try {
+            long start = pending.get(0).chunk.position;
+            dataFile.seek(start);
+            buffer.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    dataFile.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    dataFile.write(b, off, len);
+                }
+            });
+            for (Record r : pending) {
+                indexFile.writeUTF(r.id);
+                indexFile.writeLong(r.chunk.position);
+                indexFile.writeInt(r.chunk.length);
+            }
+            indexFile.flush();
+        } catch (IOException e) {
+            abandonFiles();
+            throw e;
+        }
+        indexLength += indexFile.size()-written;
+        buffer.reset();
+        pending.clear();
+    }
+
+    /**
+     * Closes the files after {@link #writeOut()} failed, and cuts the index back to its last complete record,
+     * so that the records written when trying again do not follow a partial one.
+     * What is pending is kept, and the data gets written over at the same position.
+     */
+    private void abandonFiles() {
+        IOUtils.closeQuietly(dataFile);
+        IOUtils.closeQuietly(indexFile);
+        dataFile = null;
+        indexFile = null;
+        try {
+            truncate(index, indexLength);
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Failed to discard a partial record at the end of "+index, e);
+        }
+    }
+
+    /**
+     * Copies of the chunks of the node, all of which are on disk.
+     */
+    private synchronized Chunk[] snapshot(String id) throws IOException {
+        writeOut();
+        List<Chunk> l = chunks.get(id);
+        if (l==null)
+            return new Chunk[0];
+        Chunk[] r = new Chunk[l.size()];
+        for (int i=0; i<r.length; i++)
+            r[i] = new Chunk(l.get(i).position, l.get(i).length);
+        return r;
+    }
+
+    /**
+     * Copies the log of a node from the given offset within it.
+     *
+     * @return
+     *      the offset to continue from next time.
+     */
+    /*package*/ long writeTo(String id, long offset, OutputStream out) throws IOException {
+        Chunk[] l = snapshot(id);
+        if (l.length==0)
+            return offset;
+        FileInputStream in;
+        try {
+            in = new FileInputStream(data);
+        } catch (FileNotFoundException e) {
+            LOGGER.log(WARNING, "log chunks of "+id+" are indexed but "+data+" is gone", e);
+            return offset;
+        }
+        try {
+            FileChannel src = in.getChannel();
+            WritableByteChannel dst = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out);
+            long pos = 0;   // offset within the log of the node
+            for (Chunk c : l) {
+                long start = pos;
+                pos += c.length;
+                if (offset>=pos)    continue;
+                long from = c.position+Math.max(0, offset-start), end = c.position+c.length;
+                while (from<end) {
+                    long n = src.transferTo(from, end-from, dst);
+                    if (n<=0)   return start+(from-c.position);
+                    from += n;
+                }
+            }
+            return Math.max(pos, offset);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the log of a node as it is now, to be read through {@link ByteBuffer#newInputStream()}.
+     * Nothing is read until then, and skipping seeks over the chunks rather than reading them.
+     */
+    /*package*/ ByteBuffer open(String id) throws IOException {
+        return new NodeLog(id, snapshot(id));
+    }
+
+    /**
+     * Presents the chunks of a node as a {@link ByteBuffer}, which is what {@link AnnotatedLargeText} can read from other than a file.
+     */
+    private final class NodeLog extends ByteBuffer {
+        private final String id;
+        private final Chunk[] chunks;
+        private final long length;
+
+        NodeLog(String id, Chunk[] chunks) {
+            this.id = id;
+            this.chunks = chunks;
+            long n = 0;
+            for (Chunk c : chunks)
+                n += c.length;
+            this.length = n;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(int b) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            RunLogStore.this.writeTo(id, 0, os);
+        }
+
+        @Override
+        public InputStream newInputStream() {
+            return new InputStream() {
+                private RandomAccessFile in;
+                /**
+                 * Current chunk, and the offset within it.
+                 */
+                private int i;
+                private long pos;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1)<0 ? -1 : b[0]&0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len==0)     return 0;
+                    skipEmpty();
+                    if (i==chunks.length)   return -1;
+                    if (in==null)
+                        in = new RandomAccessFile(data, "r");
+                    in.seek(chunks[i].position+pos);
+                    int n = in.read(b, off, (int) Math.min(len, chunks[i].length-pos));
+                    if (n<0)    return -1;  // indexed but not in the data file, which should not happen
+                    pos += n;
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) {
+                    long skipped = 0;
+                    while (n>0 && skipEmpty()) {
+                        long k = Math.min(n, chunks[i].length-pos);
+                        pos += k;
+                        n -= k;
+                        skipped += k;
+                    }
+                    return skipped;
+                }
+
+                /**
+                 * Moves past the chunks that have been read up completely.
+                 *
+                 * @return false if there is nothing left to read.
+                 */
+                private boolean skipEmpty() {
+                    while (i<chunks.length && pos==chunks[i].length) {
+                        i++;
+                        pos = 0;
+                    }
+                    return i<chunks.length;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (in!=null)
+                        in.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * Writes out what is buffered and releases the file handles, which get reopened if anything gets written again.
+     */
+    private synchronized void closeFiles() throws IOException {
+        try {
+            writeOut();
+        } finally {
+            if (dataFile!=null) {
+                try {
+                    dataFile.close();
+                    indexFile.close();
+                } finally {
+                    dataFile = null;
+                    indexFile = null;
+                }
+            }
+        }
+    }
+
+    private boolean isIdle(long now) {
+        return now-lastUsed > IDLE_TIMEOUT;
+    }
+
+    private synchronized boolean isOpen() {
+        return dataFile!=null;
+    }
+
+    /**
+     * Number of file handles this store has open.
+     */
+    public int getOpenFileCount() {
+        return isOpen() ? 2 : 0;
+    }
+
+    /**
+     * Gets the store of the run in the given directory, to write to it.
+     */
+    /*package*/ static RunLogStore of(File dir) throws IOException {
+        synchronized (STORES) {
+            RunLogStore s = STORES.get(dir);
+            if (s==null)
+                add(s = cached(dir));
+            return s;
+        }
+    }
+
+    /**
+     * Gets the store of the run in the given directory, to read from it.
+     * Unless the run is still writing to it, the index is loaded once and kept in {@link #LOADED}.
+     */
+    /*package*/ static RunLogStore forReading(File dir) throws IOException {
+        synchronized (STORES) {
+            RunLogStore s = STORES.get(dir);
+            if (s!=null)
+                return s;
+            return cached(dir);
+        }
+    }
+
+    /**
+     * Gets the store from {@link #LOADED}, loading it unless it is there and the index has not changed since,
+     * such as by the run getting deleted.
+     * Loading happens while holding the lock so that two stores never load, and truncate, the same files.
+     */
+    private static RunLogStore cached(File dir) throws IOException {
+        assert Thread.holdsLock(STORES);
+        RunLogStore s = LOADED.get(dir);
+        if (s==null || s.index.length()!=s.indexLength)
+            LOADED.put(dir, s = new RunLogStore(dir));
+        return s;
+    }
+
+    /**
+     * Gets the store the run in the given directory is writing to, if any.
+     */
+    public static RunLogStore get(File dir) {
+        synchronized (STORES) {
+            return STORES.get(dir);
+        }
+    }
+
+    /**
+     * Number of file handles open by all the stores.
+     */
+    public static int getTotalOpenFileCount() {
+        int n = 0;
+        for (RunLogStore s : stores())
+            n += s.getOpenFileCount();
+        return n;
+    }
+
+    /*package*/ static List<RunLogStore> stores() {
+        synchronized (STORES) {
+            return new ArrayList<RunLogStore>(STORES.values());
+        }
+    }
+
+    /**
+     * Called when the run in the given directory has completed, to close the files.
+     * The index stays in {@link #LOADED} for when the logs are looked at later.
+     */
+    public static void close(File dir) {
+        RunLogStore s;
+        synchronized (STORES) {
+            s = STORES.remove(dir);
+            if (s!=null) {
+                s.registered = false;
+                LOADED.put(dir, s);
+            }
+        }
+        if (s!=null)
+            closeQuietly(s);
+    }
+
+    private static void closeQuietly(RunLogStore s) {
+        try {
+            s.closeFiles();
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "failed to close the log store in "+s.dir, e);
+        }
+    }
+
+    /**
+     * Writes out what is buffered and closes the files before Jenkins goes down.
+     */
+    @Terminator
+    public static void closeAll() {
+        for (RunLogStore s : stores())
+            closeQuietly(s);
+    }
+
+    /**
+     * Registers a store written to through a stream that was opened before its run was {@linkplain #close(File) closed}.
+     * Called while holding the lock of the store, which is why nothing holds the lock of {@link #STORES} while locking a store.
+     */
+    private static void register(RunLogStore s) throws IOException {
+        synchronized (STORES) {
+            RunLogStore other = STORES.get(s.dir);
+            if (other!=null && other!=s)
+                throw new IOException("The logs in "+s.dir+" are already being written to by another store");
+            add(s);
+        }
+    }
+
+    private static void add(RunLogStore s) {
+        assert Thread.holdsLock(STORES);
+        STORES.put(s.dir, s);
+        LOADED.remove(s.dir);
+        s.registered = true;
+        if (flusher==null)
+            flusher = Timer.get().scheduleWithFixedDelay(new Flusher(), FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the files of the least recently used stores, other than the given one, beyond {@link #MAX_OPEN}.
+     * They stay around, and reopen the files when written to again.
+     * Must not be called while holding the lock of a store.
+     */
+    private static void evict(RunLogStore keep) {
+        final Map<RunLogStore,Long> open = new HashMap<RunLogStore,Long>();
+        for (RunLogStore s : stores()) {
+            if (s.isOpen())
+                open.put(s, s.lastUsed);    // taken once, as it changes while sorting
+        }
+        int excess = open.size()-MAX_OPEN;
+        if (excess<=0)
+            return;
+        open.remove(keep);
+        List<RunLogStore> victims = new ArrayList<RunLogStore>(open.keySet());
+        Collections.sort(victims, new Comparator<RunLogStore>() {
+            public int compare(RunLogStore a, RunLogStore b) {
+                long x = open.get(a), y = open.get(b);
+                return x<y ? -1 : x>y ? 1 : 0;
+            }
+        });
+        for (RunLogStore v : victims.subList(0, Math.min(excess, victims.size())))
+            closeQuietly(v);
+    }
+
+    /**
+     * Periodically writes out what is buffered, and closes the files of idle stores.
+     */
+    /*package*/ static final class Flusher implements Runnable {
+        public void run() {
+            long now = System.currentTimeMillis();
+            for (RunLogStore s : stores()) {
+                try {
+                    if (s.isIdle(now))
+                        s.closeFiles();
+                    else
+                        s.writeOut();
+                } catch (IOException e) {
+                    LOGGER.log(WARNING, "failed to write the log store in "+s.dir, e);
+                }
+            }
+            evict(null);
+        }
+    }
+
+    private static final class Chunk {
+        /**
+         * Where the chunk starts in {@link #data}.
+         */
+        final long position;
+        int length;
+
+        Chunk(long position, int length) {
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A chunk yet to be recorded in {@link #index}.
+     */
+    private static final class Record {
+        final String id;
+        final Chunk chunk;
+
+        Record(String id, Chunk chunk) {
+            this.id = id;
+            this.chunk = chunk;
+        }
+    }
+
+    /**
+     * Stores of the runs that have been written to since they were last closed.
+     */
+    private static final Map<File,RunLogStore> STORES = new HashMap<File,RunLogStore>();
+
+    /**
+     * Stores that are only read from, the least recently read first, guarded by the lock of {@link #STORES}.
+     */
+    private static final Map<File,RunLogStore> LOADED = new LinkedHashMap<File,RunLogStore>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File,RunLogStore> eldest) {
+            return size()>CACHE_SIZE;
+        }
+    };
+
+    private static ScheduledFuture<?> flusher;
+
+    /**
+     * Maximum number of stores that keep their files open.
+     */
+    public static int MAX_OPEN = Integer.getInteger(RunLogStore.class.getName()+".maxOpen", 100);
+
+    /**
+     * Milliseconds after which buffered writes are written out.
+     */
+    public static long FLUSH_INTERVAL = Long.getLong(RunLogStore.class.getName()+".flushInterval", 1000);
+
+    /**
+     * Milliseconds after which a store that has not been written to closes its files.
+     */
+    public static long IDLE_TIMEOUT = Long.getLong(RunLogStore.class.getName()+".idleTimeout", 30000);
+
+    /**
+     * Maximum number of stores of completed runs whose index is kept in memory.
+     */
+    public static int CACHE_SIZE = Integer.getInteger(RunLogStore.class.getName()+".cacheSize", 20);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /*package*/ static final String DATA = "log-store";
+    /*package*/ static final String INDEX = "log-store.index";
+
+    private static final Logger LOGGER = Logger.getLogger(RunLogStore.class.getName());
+}
@@ -44,7 +44,7 @@ public class ComputerPickle extends Pickle {
 
     @Override
     public ListenableFuture<Computer> rehydrate() {
-        return new TryRepeatedly<Computer>(1) {
+        return new TryRepeatedly<Computer>(slave) {
             @Override
             protected Computer tryResolve() {
                 Jenkins j = Jenkins.getInstance();
@@ -56,7 +56,7 @@ public class FilePathPickle extends Pickle {
 
     @Override
     public ListenableFuture<FilePath> rehydrate() {
-        return new TryRepeatedly<FilePath>(1) {
+        return new TryRepeatedly<FilePath>(slave) {
             @Override
             protected FilePath tryResolve() {
                 Jenkins j = Jenkins.getInstance();
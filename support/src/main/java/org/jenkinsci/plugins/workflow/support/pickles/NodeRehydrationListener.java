@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.pickles;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of {@link TryRepeatedly}s waiting for a node, and tries them again as soon as the node comes online.
+ */
+@Extension
+public class NodeRehydrationListener extends ComputerListener {
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        for (TryRepeatedly<?> t : waitingFor(c.getName()))
+            t.tryNow();
+    }
+
+    /**
+     * Nodes may have been added, which is all some pickles are waiting for.
+     */
+    @Override
+    public void onConfigurationChange() {
+        for (TryRepeatedly<?> t : waitingFor(null))
+            t.tryNow();
+    }
+
+    /*package*/ static void register(String node, TryRepeatedly<?> t) {
+        synchronized (WAITING) {
+            Set<TryRepeatedly<?>> s = WAITING.get(node);
+            if (s==null)
+                WAITING.put(node, s = new LinkedHashSet<TryRepeatedly<?>>());
+            s.add(t);
+        }
+    }
+
+    /*package*/ static void unregister(String node, TryRepeatedly<?> t) {
+        synchronized (WAITING) {
+            Set<TryRepeatedly<?>> s = WAITING.get(node);
+            if (s!=null && s.remove(t) && s.isEmpty())
+                WAITING.remove(node);
+        }
+    }
+
+    /**
+     * @param node
+     *      null to list those waiting for any node.
+     */
+    private static List<TryRepeatedly<?>> waitingFor(String node) {
+        synchronized (WAITING) {
+            List<TryRepeatedly<?>> r = new ArrayList<TryRepeatedly<?>>();
+            if (node==null) {
+                for (Set<TryRepeatedly<?>> s : WAITING.values())
+                    r.addAll(s);
+            } else {
+                Set<TryRepeatedly<?>> s = WAITING.get(node);
+                if (s!=null)
+                    r.addAll(s);
+            }
+            return r;
+        }
+    }
+
+    /**
+     * Number of pickles still waiting for each node.
+     */
+    public static Map<String,Integer> getPendingCounts() {
+        synchronized (WAITING) {
+            Map<String,Integer> r = new TreeMap<String,Integer>();
+            for (Map.Entry<String,Set<TryRepeatedly<?>>> e : WAITING.entrySet())
+                r.put(e.getKey(), e.getValue().size());
+            return r;
+        }
+    }
+
+    private static final Map<String,Set<TryRepeatedly<?>>> WAITING = new HashMap<String,Set<TryRepeatedly<?>>>();
+}
@@ -26,6 +26,7 @@ package org.jenkinsci.plugins.workflow.support.pickles;
 
 import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import jenkins.util.Timer;
 
 import java.util.concurrent.ScheduledFuture;
@@ -35,42 +36,104 @@ import javax.annotation.CheckForNull;
 /**
  * {@link ListenableFuture} that promises a value that needs to be periodically tried.
  *
+ * <p>
+ * If the value depends on a node coming online, use {@link #TryRepeatedly(String)},
+ * so that it is tried as soon as that happens, and only rarely polled otherwise.
+ *
  * @author Kohsuke Kawaguchi
  */
 public abstract class TryRepeatedly<V> extends AbstractFuture<V> {
     private final int seconds;
     private ScheduledFuture<?> next;
 
+    /**
+     * Ensures that only one attempt is in progress at a time.
+     */
+    private final Object attempting = new Object();
+
+    /**
+     * Whether {@link #attempt()} is running, and whether {@link #tryNow()} was called meanwhile.
+     * Guarded by {@code this}.
+     */
+    private boolean inAttempt, retryRequested;
+
     protected TryRepeatedly(int seconds) {
         this.seconds = seconds;
-        tryLater();
+        tryLater(seconds);
+    }
+
+    /**
+     * Tries right away, and then again whenever the given node comes online,
+     * falling back to polling every {@link #FALLBACK_SECONDS} in case we miss that.
+     *
+     * @param node
+     *      name of the node, as in {@link hudson.model.Computer#getName()}.
+     */
+    protected TryRepeatedly(final String node) {
+        this.seconds = FALLBACK_SECONDS;
+        NodeRehydrationListener.register(node, this);
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                NodeRehydrationListener.unregister(node, TryRepeatedly.this);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        tryLater(0);
     }
 
-    private void tryLater() {
+    private synchronized void tryLater(int delay) {
         // TODO log a warning if trying for too long; probably Pickle.rehydrate should be given a TaskListener to note progress
 
-        if (isCancelled())      return;
+        if (isDone())      return;
 
+        if (next!=null)
+            next.cancel(false);
         next = Timer.get().schedule(new Runnable() {
             @Override
             public void run() {
-                try {
-                    V v = tryResolve();
-                    if (v == null)
-                        tryLater();
-                    else
-                        set(v);
-                } catch (Throwable t) {
-                    setException(t);
+                attempt();
+            }
+        }, delay, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Tries again now rather than at the next scheduled time, for example because the node has just come online.
+     */
+    /*package*/ synchronized void tryNow() {
+        if (inAttempt)
+            retryRequested = true;  // the attempt in progress may have missed the change, so it tries again when done
+        else
+            tryLater(0);
+    }
+
+    private void attempt() {
+        synchronized (attempting) {
+            if (isDone())   return;
+            synchronized (this) {
+                inAttempt = true;
+                retryRequested = false;
+            }
+            try {
+                V v = tryResolve();
+                if (v != null)
+                    set(v);
+            } catch (Throwable t) {
+                setException(t);
+            } finally {
+                synchronized (this) {
+                    inAttempt = false;
+                    tryLater(retryRequested ? 0 : seconds);
                 }
             }
-        }, seconds, TimeUnit.SECONDS);
+        }
     }
 
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
-        if (next!=null)
-            next.cancel(mayInterruptIfRunning);
+        synchronized (this) {
+            if (next!=null)
+                next.cancel(mayInterruptIfRunning);
+        }
         return super.cancel(mayInterruptIfRunning);
     }
 
@@ -83,4 +146,9 @@ public abstract class TryRepeatedly<V> extends AbstractFuture<V> {
      *      Any exception thrown will cause the future to fail.
      */
     protected abstract @CheckForNull V tryResolve() throws Exception;
+
+    /**
+     * How often to try, in seconds, when waiting for a node to come online.
+     */
+    public static int FALLBACK_SECONDS = Integer.getInteger(TryRepeatedly.class.getName()+".fallbackSeconds", 60);
 }
@@ -52,7 +52,7 @@ public class VirtualChannelPickle extends Pickle {
 
     @Override
     public ListenableFuture<VirtualChannel> rehydrate() {
-        return new TryRepeatedly<VirtualChannel>(1) {
+        return new TryRepeatedly<VirtualChannel>(slave) {
             @Override
             protected VirtualChannel tryResolve() {
                 Computer c = Jenkins.getInstance().getComputer(slave);
@@ -54,7 +54,7 @@ public class WorkspaceListLeasePickle extends Pickle {
     }
 
     @Override public ListenableFuture<?> rehydrate() {
-        return new TryRepeatedly<WorkspaceList.Lease>(1) {
+        return new TryRepeatedly<WorkspaceList.Lease>(slave) {
             @Override protected WorkspaceList.Lease tryResolve() throws InterruptedException {
                 Jenkins j = Jenkins.getInstance();
                 if (j == null) {
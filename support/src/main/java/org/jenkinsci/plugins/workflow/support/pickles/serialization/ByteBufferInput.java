@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.workflow.support.pickles.serialization;
+
+import org.jboss.marshalling.ByteInput;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ByteInput} that reads straight out of a {@link ByteBuffer}, such as a region of a memory-mapped file.
+ *
+ * <p>
+ * {@link #close()} drops the reference to the buffer, so that the mapping can be released
+ * even if the unmarshaller reading from us is kept around.
+ */
+final class ByteBufferInput extends InputStream implements ByteInput {
+    private ByteBuffer buf;
+
+    ByteBufferInput(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    private ByteBuffer buf() throws IOException {
+        if (buf==null)
+            throw new IOException("Stream closed");
+        return buf;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer b = buf();
+        return b.hasRemaining() ? b.get()&0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] dst, int off, int len) throws IOException {
+        ByteBuffer b = buf();
+        if (len==0)     return 0;
+        if (!b.hasRemaining())  return -1;
+        len = Math.min(len, b.remaining());
+        b.get(dst, off, len);
+        return len;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return buf().remaining();
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ByteBuffer b = buf();
+        int s = (int)Math.min(Math.max(n, 0), b.remaining());
+        b.position(b.position()+s);
+        return s;
+    }
+
+    @Override
+    public void close() {
+        buf = null;
+    }
+}
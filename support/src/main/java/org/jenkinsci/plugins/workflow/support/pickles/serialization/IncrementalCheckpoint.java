@@ -0,0 +1,388 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.pickles.serialization;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Persists successive states of a program, as serialized by {@link RiverWriter#toByteArray()},
+ * by occasionally writing a full base snapshot, and in between only how the state differs from that base.
+ *
+ * <p>
+ * The difference is computed on the serialized bytes rather than on the object graph,
+ * because objects in the graph are shared among the threads of the program, and identity has to be preserved.
+ * Bytes are split into chunks at content-defined boundaries, so that an insertion early in the stream
+ * does not shift every chunk after it, and chunks also found in the base are recorded as references to it.
+ * Every delta is relative to the base, so restoring never needs more than the base and the latest delta.
+ * The base is kept uncompressed for that matching to work, but the delta is compressed.
+ * Note that the whole program is still serialized on every checkpoint; what this saves is disk I/O.
+ *
+ * @see RiverReader
+ */
+public class IncrementalCheckpoint {
+    /**
+     * The full snapshot, in the format of {@link RiverWriter}.
+     */
+    private final File base;
+
+    /**
+     * How the latest state differs from {@link #base}.
+     */
+    private final File delta;
+
+    /**
+     * Chunks of {@link #base} by their digest, or null if not known yet.
+     */
+    private Map<ByteBuffer,Chunk> chunks;
+
+    private int baseChecksum;
+
+    /**
+     * Number of deltas written since {@link #base}.
+     */
+    private int deltas;
+
+    public IncrementalCheckpoint(File base) {
+        this.base = base;
+        this.delta = getDeltaFile(base);
+    }
+
+    public File getBase() {
+        return base;
+    }
+
+    public static File getDeltaFile(File base) {
+        return new File(base.getPath()+".delta");
+    }
+
+    /**
+     * Persists the new state of the program, either as a delta or as a new base.
+     */
+    public synchronized void write(byte[] program) throws IOException {
+        if (chunks==null && base.exists()) {
+            // restore() has already folded any delta into the base
+            index(FileUtils.readFileToByteArray(base));
+        }
+
+        if (chunks!=null && deltas<FULL_SNAPSHOT_INTERVAL) {
+            byte[] d = diff(program);
+            if (d!=null) {
+                writeAtomically(delta, d);
+                deltas++;
+                return;
+            }
+        }
+
+        writeAtomically(base, program);
+        // if we die before getting here, restore() notices that the delta is for a different base
+        delta.delete();
+        index(program);
+        deltas = 0;
+    }
+
+    /**
+     * Persists the new state of the program as a new base, without looking for what it shares with the old one,
+     * as when the state is compressed.
+     */
+    public synchronized void writeFull(byte[] program) throws IOException {
+        writeAtomically(base, program);
+        delta.delete();
+        chunks = null;
+        deltas = 0;
+    }
+
+    /**
+     * Folds the delta, if any, into the base, so that the base alone holds the latest state of the program.
+     */
+    public static void restore(File base) throws IOException {
+        File delta = getDeltaFile(base);
+        if (!delta.exists())
+            return;
+
+        byte[] program = apply(FileUtils.readFileToByteArray(base), FileUtils.readFileToByteArray(delta));
+        if (program!=null) {
+            writeAtomically(base, program);
+        } else {
+            LOGGER.log(WARNING, "{0} is not for the current {1}; ignoring", new Object[] {delta, base});
+        }
+        delta.delete();
+    }
+
+    private void index(byte[] b) {
+        chunks = new HashMap<ByteBuffer,Chunk>();
+        MessageDigest md = md5();
+        for (Chunk c : split(b)) {
+            chunks.put(digest(md, b, c), c);
+        }
+        baseChecksum = checksum(b, 0, b.length);
+    }
+
+    /**
+     * Describes the program in terms of {@link #base}.
+     *
+     * @return
+     *      null if the program has too little in common with the base for a delta to be worthwhile.
+     */
+    private byte[] diff(byte[] program) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream o = new DataOutputStream(buf);
+        o.writeLong(HEADER);
+        o.writeShort(VERSION);
+        o.writeInt(baseChecksum);
+        o.writeInt(program.length);
+        o.flush();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        DeflaterOutputStream z = new DeflaterOutputStream(buf, deflater);
+        o = new DataOutputStream(z);
+
+        int literal = 0;
+        int copyFrom = -1, copyLength = 0;      // pending copy from the base
+        int literalFrom = -1, literalLength = 0; // pending literal bytes from the program
+        MessageDigest md = md5();
+        for (Chunk c : split(program)) {
+            Chunk b = chunks.get(digest(md, program, c));
+            if (b!=null) {
+                if (literalLength>0) {
+                    writeLiteral(o, program, literalFrom, literalLength);
+                    literalLength = 0;
+                }
+                if (copyLength>0 && copyFrom+copyLength==b.offset) {
+                    copyLength += b.length; // extends the previous copy
+                } else {
+                    if (copyLength>0)
+                        writeCopy(o, copyFrom, copyLength);
+                    copyFrom = b.offset;
+                    copyLength = b.length;
+                }
+            } else {
+                if (copyLength>0) {
+                    writeCopy(o, copyFrom, copyLength);
+                    copyLength = 0;
+                }
+                if (literalLength==0)
+                    literalFrom = c.offset;
+                literalLength += c.length;  // chunks are contiguous, so this extends the previous literal
+                literal += c.length;
+            }
+        }
+        if (literalLength>0)
+            writeLiteral(o, program, literalFrom, literalLength);
+        if (copyLength>0)
+            writeCopy(o, copyFrom, copyLength);
+        o.writeByte(END);
+        o.writeInt(checksum(program, 0, program.length));
+        o.flush();
+        z.finish();
+        deflater.end();
+
+        if (literal > program.length*MAX_LITERAL_RATIO)
+            return null;
+        return buf.toByteArray();
+    }
+
+    private static void writeCopy(DataOutputStream o, int offset, int length) throws IOException {
+        o.writeByte(COPY);
+        o.writeInt(offset);
+        o.writeInt(length);
+    }
+
+    private static void writeLiteral(DataOutputStream o, byte[] program, int offset, int length) throws IOException {
+        o.writeByte(LITERAL);
+        o.writeInt(length);
+        o.write(program, offset, length);
+    }
+
+    /**
+     * Reconstructs the program from the base and a delta.
+     *
+     * @return
+     *      null if the delta was computed against a different base.
+     */
+    private static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        if (in.readLong()!=HEADER)
+            throw new IOException("Invalid delta header");
+        short v = in.readShort();
+        if (v!=VERSION)
+            throw new IOException("Unexpected delta version: "+v);
+        if (in.readInt()!=checksum(base, 0, base.length))
+            return null;
+
+        byte[] program = new byte[in.readInt()];
+        in = new DataInputStream(new InflaterInputStream(in));
+        int pos = 0;
+        while (true) {
+            byte op = in.readByte();
+            if (op==END)    break;
+            int offset = op==COPY ? in.readInt() : -1;
+            int length = in.readInt();
+            if (length<0 || pos+length>program.length)
+                throw new IOException("Corrupt delta");
+            switch (op) {
+            case COPY:
+                if (offset<0 || offset+length>base.length)
+                    throw new IOException("Corrupt delta");
+                System.arraycopy(base, offset, program, pos, length);
+                break;
+            case LITERAL:
+                in.readFully(program, pos, length);
+                break;
+            default:
+                throw new IOException("Corrupt delta");
+            }
+            pos += length;
+        }
+        if (pos!=program.length || in.readInt()!=checksum(program, 0, program.length))
+            throw new IOException("Corrupt delta");
+        return program;
+    }
+
+    /**
+     * Splits bytes into chunks at content-defined boundaries, using a gear hash over the last 64 bytes or so.
+     */
+    private static List<Chunk> split(byte[] b) {
+        List<Chunk> r = new ArrayList<Chunk>(b.length/AVERAGE_CHUNK+1);
+        int start = 0;
+        long hash = 0;
+        for (int i=0; i<b.length; i++) {
+            hash = (hash<<1) + GEAR[b[i]&0xFF];
+            int length = i+1-start;
+            if ((length>=MIN_CHUNK && (hash>>>BOUNDARY_SHIFT)==0) || length>=MAX_CHUNK) {
+                r.add(new Chunk(start, length));
+                start = i+1;
+                hash = 0;
+            }
+        }
+        if (start<b.length)
+            r.add(new Chunk(start, b.length-start));
+        return r;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Digests one chunk. {@link MessageDigest#digest()} resets the digest, so it can be reused for the next chunk.
+     */
+    private static ByteBuffer digest(MessageDigest md, byte[] b, Chunk c) {
+        md.update(b, c.offset, c.length);
+        return ByteBuffer.wrap(md.digest());
+    }
+
+    private static int checksum(byte[] b, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(b, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeAtomically(File f, byte[] data) throws IOException {
+        File tmp = File.createTempFile("atomic", null, f.getParentFile());
+        try {
+            FileOutputStream o = new FileOutputStream(tmp);
+            try {
+                o.write(data);
+            } finally {
+                o.close();
+            }
+            if (!tmp.renameTo(f)) {
+                f.delete();
+                if (!tmp.renameTo(f))
+                    throw new IOException("Failed to rename "+tmp+" to "+f);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static final class Chunk {
+        final int offset;
+        final int length;
+
+        Chunk(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Number of deltas written before writing a full snapshot again.
+     */
+    public static int FULL_SNAPSHOT_INTERVAL = 50;
+
+    /**
+     * If more than this portion of the program is not found in the base, we write a full snapshot instead.
+     */
+    private static final double MAX_LITERAL_RATIO = 0.5;
+
+    private static final int MIN_CHUNK = 256;
+    private static final int AVERAGE_CHUNK = 2048;
+    private static final int MAX_CHUNK = 16*1024;
+    /**
+     * Looks at the top 11 bits, so that a boundary is found every {@link #AVERAGE_CHUNK} bytes on average.
+     */
+    private static final int BOUNDARY_SHIFT = 64-11;
+
+    private static final long[] GEAR = new long[256];
+    static {
+        Random r = new Random(0x5EED);
+        for (int i=0; i<GEAR.length; i++)
+            GEAR[i] = r.nextLong();
+    }
+
+    private static final byte END = 0, COPY = 1, LITERAL = 2;
+
+    /*constant*/ static final long HEADER = 7330745437582215634L;
+    /*constant*/ static final int VERSION = 1;
+
+    private static final Logger LOGGER = Logger.getLogger(IncrementalCheckpoint.class.getName());
+}
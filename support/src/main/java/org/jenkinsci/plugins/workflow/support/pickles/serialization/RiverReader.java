@@ -26,7 +26,8 @@ package org.jenkinsci.plugins.workflow.support.pickles.serialization;
 
 import com.google.common.base.Function;
 import com.google.common.util.concurrent.ListenableFuture;
-import org.apache.commons.io.IOUtils;
+import hudson.Functions;
+import org.jboss.marshalling.ByteInput;
 import org.jboss.marshalling.ChainingObjectResolver;
 import org.jboss.marshalling.Marshalling;
 import org.jboss.marshalling.MarshallingConfiguration;
@@ -38,13 +39,15 @@ import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.pickles.Pickle;
 import org.jenkinsci.plugins.workflow.support.concurrent.Futures;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import static org.apache.commons.io.IOUtils.*;
 
@@ -56,6 +59,11 @@ import static org.apache.commons.io.IOUtils.*;
  * which are used to restore stateful objects. The second stream is the main stream that contains
  * the main program state, which includes references to {@link DryCapsule} (which gets replaced to
  * their respective stateful objects.
+ * Files written before {@linkplain RiverWriter#VERSION version 2} of the format are still read.
+ *
+ * <p>
+ * If the file has been written through {@link IncrementalCheckpoint},
+ * the latest delta is folded into it before reading.
  *
  * @author Kohsuke Kawaguchi
  */
@@ -90,15 +98,87 @@ public class RiverReader {
         this.owner = owner;
     }
 
-    private int parseHeader(DataInputStream din) throws IOException {
-        if (din.readLong()!= RiverWriter.HEADER)
+    /**
+     * Opens the main stream and the pickle stream, in this order, both backed by a single mapping of the file.
+     */
+    private InputStream[] openSections() throws IOException {
+        ByteBuffer buf = map();
+        if (buf.getLong()!= RiverWriter.HEADER)
             throw new IOException("Invalid stream header");
 
-        short v = din.readShort();
-        if (v!=1)
+        short v = buf.getShort();
+        switch (v) {
+        case 1:
+            int offset = buf.getInt();
+            return new InputStream[] {
+                new ByteBufferInput(region(buf, buf.position(), buf.limit()-buf.position())),
+                new ByteBufferInput(region(buf, offset, buf.limit()-offset))
+            };
+        case 2:
+            RiverWriter.Codec codec = RiverWriter.Codec.of(buf.get());
+            return readSections(buf, codec);
+        default:
             throw new IOException("Unexpected stream version: "+v);
+        }
+    }
 
-        return din.readInt();
+    /**
+     * Looks up the sections listed in the table at the end of the stream, and verifies their checksums.
+     */
+    private InputStream[] readSections(ByteBuffer buf, RiverWriter.Codec codec) throws IOException {
+        int table = buf.getInt(buf.limit()-4);
+        InputStream[] sections = new InputStream[2];
+        for (int i=0; i<sections.length; i++) {
+            int e = table+i*12;
+            int offset = buf.getInt(e), length = buf.getInt(e+4), crc = buf.getInt(e+8);
+            ByteBuffer section = region(buf, offset, length);
+            if (checksum(section.duplicate())!=crc)
+                throw new IOException("Checksum mismatch in section "+i+" of "+file);
+            sections[i] = codec.decode(new ByteBufferInput(section));
+        }
+        return sections;
+    }
+
+    private ByteBuffer region(ByteBuffer buf, int offset, int length) throws IOException {
+        if (offset<0 || length<0 || (long)offset+length>buf.limit())
+            throw new IOException("Corrupt stream in "+file);
+        ByteBuffer r = buf.duplicate();
+        r.position(offset);
+        r.limit(offset+length);
+        return r.slice();
+    }
+
+    private static int checksum(ByteBuffer b) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while (b.hasRemaining()) {
+            int len = Math.min(chunk.length, b.remaining());
+            b.get(chunk, 0, len);
+            crc.update(chunk, 0, len);
+        }
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Maps the whole file into memory, so that both streams are read from it without opening the file again.
+     * The file itself is closed right away; the mapping goes away once the streams are closed and collected.
+     */
+    private ByteBuffer map() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            if (Functions.isWindows()) {
+                // a mapped file cannot be replaced until the mapping is garbage collected, which would break the next save
+                ByteBuffer b = ByteBuffer.allocate((int)ch.size());
+                while (b.hasRemaining() && ch.read(b)>=0)
+                    ;
+                b.flip();
+                return b;
+            }
+            return ch.map(MapMode.READ_ONLY, 0, ch.size());
+        } finally {
+            raf.close();
+        }
     }
 
     /**
@@ -109,11 +189,13 @@ public class RiverReader {
      * that can be then used to load the objects persisted by {@link RiverWriter}.
      */
     public ListenableFuture<Unmarshaller> restorePickles() throws IOException {
-        DataInputStream din = new DataInputStream(openStreamAt(0));
-        int offset = parseHeader(din);
+        IncrementalCheckpoint.restore(file);
+
+        InputStream[] sections = openSections();
+        InputStream main = sections[0];
 
         // load the pickle stream
-        List<Pickle> pickles = readPickles(offset);
+        List<Pickle> pickles = readPickles(sections[1]);
         final PickleResolver evr = new PickleResolver(pickles);
 
         // prepare the unmarshaller to load the main stream, by using yet-fulfilled PickleResolver
@@ -122,7 +204,7 @@ public class RiverReader {
         //config.setSerializabilityChecker(new SerializabilityCheckerImpl());
         config.setObjectResolver(combine(evr, ownerResolver));
         final Unmarshaller eu = new RiverMarshallerFactory().createUnmarshaller(config);
-        eu.start(Marshalling.createByteInput(din));
+        eu.start(byteInput(main));
 
         // start rehydrating, and when done make the unmarshaller available
         return Futures.transform(evr.rehydrate(), new Function<PickleResolver, Unmarshaller>() {
@@ -132,15 +214,14 @@ public class RiverReader {
         });
     }
 
-    private List<Pickle> readPickles(int offset) throws IOException {
-        BufferedInputStream es = openStreamAt(offset);
+    private List<Pickle> readPickles(InputStream es) throws IOException {
         try {
             MarshallingConfiguration config = new MarshallingConfiguration();
             config.setClassResolver(new SimpleClassResolver(classLoader));
             config.setObjectResolver(ownerResolver);
             Unmarshaller eu = new RiverMarshallerFactory().createUnmarshaller(config);
             try {
-                eu.start(Marshalling.createByteInput(es));
+                eu.start(byteInput(es));
                 return (List<Pickle>)eu.readObject();
             } catch (ClassNotFoundException e) {
                 throw new IOException("Failed to read the stream",e);
@@ -152,10 +233,8 @@ public class RiverReader {
         }
     }
 
-    private BufferedInputStream openStreamAt(int offset) throws IOException {
-        InputStream in = new FileInputStream(file);
-        IOUtils.skipFully(in, offset);
-        return new BufferedInputStream(in);
+    private static ByteInput byteInput(InputStream in) {
+        return in instanceof ByteInput ? (ByteInput)in : Marshalling.createByteInput(in);
     }
 
     private ObjectResolver combine(ObjectResolver... resolvers) {
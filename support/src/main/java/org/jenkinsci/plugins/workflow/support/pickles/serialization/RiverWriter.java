@@ -21,13 +21,11 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  */
-
 package org.jenkinsci.plugins.workflow.support.pickles.serialization;
 
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.pickles.Pickle;
 import org.jenkinsci.plugins.workflow.pickles.PickleFactory;
-import com.trilead.ssh2.util.IOUtils;
 import org.jboss.marshalling.Marshaller;
 import org.jboss.marshalling.Marshalling;
 import org.jboss.marshalling.MarshallingConfiguration;
@@ -35,31 +33,50 @@ import org.jboss.marshalling.ObjectResolver;
 import org.jboss.marshalling.river.RiverMarshallerFactory;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * {@link ObjectOutputStream} compatible object graph serializer
  * that handles stateful objects for proper rehydration later.
  *
+ * <p>
+ * The stream starts with {@link #HEADER}, {@link #VERSION} and the {@link Codec} of the sections.
+ * Then come two sections, the main stream and the stream of {@link Pickle}s, each encoded by the codec.
+ * The stream ends with a table that lists the offset, length and CRC32 of each section as stored,
+ * followed by the offset of that table, so that nothing needs to be patched after the fact
+ * and corruption is detected before anything gets unmarshalled.
+ *
  * @author Kohsuke Kawaguchi
  * @see RiverMarshallerFactory
  * @see RiverReader
  */
 public class RiverWriter implements Closeable {
     /**
-     * File that we are writing to.
+     * File that we are writing to, or null if we are writing to {@link #buffer}.
      */
     private final File file;
 
+    /**
+     * Memory that we are writing to, if not to {@link #file}.
+     */
+    private final ByteArrayOutputStream buffer;
+
     /**
      * The location of the persisted file implies a {@link FlowExecutionOwner}, so we don't
      * actually store the owner object.
@@ -67,16 +84,21 @@ public class RiverWriter implements Closeable {
     private final FlowExecutionOwner owner;
 
     /**
-     * Writes to {@link #file}.
+     * Writes to {@link #file} or {@link #buffer}, and keeps track of the offset.
      */
     private final DataOutputStream dout;
 
+    private final Codec codec;
+
     /**
      * Handles object graph -> byte[] conversion
      */
     private final Marshaller marshaller;
 
-    private final int ephemeralsBackptr;
+    /**
+     * The section of the main stream.
+     */
+    private final Section main;
 
     private boolean pickling;
 
@@ -87,13 +109,30 @@ public class RiverWriter implements Closeable {
 
     // TODO: rename to HibernatingObjectOutputStream?
     public RiverWriter(File f, FlowExecutionOwner _owner) throws IOException {
+        this(f, null, _owner, Codec.DEFLATE);
+    }
+
+    /**
+     * Writes into memory instead of a file.
+     * The result can be obtained from {@link #toByteArray()} after {@link #close()}.
+     *
+     * @param sizeHint
+     *      expected number of bytes to be written, such as the size of the previously written state,
+     *      so that the buffer does not have to grow repeatedly.
+     */
+    public RiverWriter(FlowExecutionOwner _owner, Codec codec, int sizeHint) throws IOException {
+        this(null, new ByteArrayOutputStream(Math.max(sizeHint, 1024)), _owner, codec);
+    }
+
+    private RiverWriter(File f, ByteArrayOutputStream _buffer, FlowExecutionOwner _owner, Codec _codec) throws IOException {
         file = f;
+        buffer = _buffer;
         owner = _owner;
-        dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        codec = _codec;
+        dout = new DataOutputStream(file!=null ? new BufferedOutputStream(new FileOutputStream(file)) : buffer);
         dout.writeLong(HEADER);
         dout.writeShort(VERSION);
-        ephemeralsBackptr = dout.size();
-        dout.writeInt(0);     // we'll back-fill this address with the pointer to the ephemerals stream
+        dout.writeByte(codec.id);
 
         MarshallingConfiguration config = new MarshallingConfiguration();
         //config.setSerializabilityChecker(new SerializabilityCheckerImpl());
@@ -120,7 +159,8 @@ public class RiverWriter implements Closeable {
         });
 
         marshaller = new RiverMarshallerFactory().createMarshaller(config);
-        marshaller.start(Marshalling.createByteOutput(dout));
+        main = new Section();
+        marshaller.start(Marshalling.createByteOutput(main.out));
         pickling = true;
     }
 
@@ -137,25 +177,98 @@ public class RiverWriter implements Closeable {
 
     public void close() throws IOException {
         marshaller.finish();
-        int ephemeralsOffset = dout.size();
+        main.finish();
 
         // write the ephemerals stream
         pickling = false;
-        marshaller.start(Marshalling.createByteOutput(dout));
+        Section ephemerals = new Section();
+        marshaller.start(Marshalling.createByteOutput(ephemerals.out));
         marshaller.writeObject(pickles);
         marshaller.finish();
+        ephemerals.finish();
+
+        // and the table of contents at the end
+        int table = dout.size();
+        main.writeEntry();
+        ephemerals.writeEntry();
+        dout.writeInt(table);
         dout.close();
+    }
+
+    /**
+     * Returns what has been written, if this writer was created to write into memory.
+     */
+    public byte[] toByteArray() {
+        if (buffer==null)
+            throw new IllegalStateException("Writing to "+file);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Region of the stream that holds one object stream.
+     */
+    private final class Section {
+        final int offset = dout.size();
+        final CRC32 crc = new CRC32();
+        final Deflater deflater;
+        final OutputStream out;
+        int length;
+
+        Section() {
+            OutputStream o = new CheckedOutputStream(dout, crc);
+            if (codec==Codec.DEFLATE) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                o = new DeflaterOutputStream(o, deflater, 8192);
+            } else {
+                deflater = null;
+            }
+            out = o;
+        }
+
+        void finish() throws IOException {
+            if (deflater!=null) {
+                ((DeflaterOutputStream)out).finish();
+                deflater.end();
+            }
+            out.flush();
+            length = dout.size()-offset;
+        }
+
+        void writeEntry() throws IOException {
+            dout.writeInt(offset);
+            dout.writeInt(length);
+            dout.writeInt((int)crc.getValue());
+        }
+    }
+
+    /**
+     * How sections are encoded.
+     */
+    public enum Codec {
+        NONE(0),
+        DEFLATE(1);
+
+        /**
+         * Persisted in the stream.
+         */
+        final int id;
+
+        Codec(int id) {
+            this.id = id;
+        }
+
+        /*package*/ InputStream decode(InputStream in) {
+            return this==DEFLATE ? new InflaterInputStream(in) : in;
+        }
 
-        // back fill the offset to the ephemerals stream
-        RandomAccessFile raf = new RandomAccessFile(file, "rw");
-        try {
-            raf.seek(ephemeralsBackptr);
-            raf.writeInt(ephemeralsOffset);
-        } finally {
-            IOUtils.closeQuietly(raf);
+        /*package*/ static Codec of(int id) throws IOException {
+            for (Codec c : values())
+                if (c.id==id)
+                    return c;
+            throw new IOException("Unknown codec: "+id);
         }
     }
 
     /*constant*/ static final long HEADER = 7330745437582215633L;
-    /*constant*/ static final int VERSION = 1;
+    /*constant*/ static final int VERSION = 2;
 }
@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Least-recently-used cache of loaded {@link FlowNode}s shared by all {@link FlowNodeStorage}s.
+ *
+ * <p>
+ * The cache is bounded by the total size of the persisted form of the cached nodes,
+ * which is what the storages can cheaply tell, rather than by their heap footprint.
+ * Unlike a per-execution map behind a {@link java.lang.ref.SoftReference},
+ * this neither holds on to every node of every open build nor loses all of them at once under memory pressure.
+ *
+ * <p>
+ * Entries of a build are dropped when its execution completes, when the build gets loaded again
+ * (which means the instance that loaded them has been unloaded), and when the build is deleted.
+ * A summary of the hits, misses and evictions is logged at {@code FINE} every time.
+ */
+public final class FlowNodeCache {
+    private final long capacity;
+
+    /**
+     * Sum of {@link Entry#weight} of all the entries.
+     */
+    private long size;
+
+    private final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(256, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Directory of every storage that may have entries.
+     */
+    private final Map<FlowNodeStorage,File> dirs = new WeakHashMap<FlowNodeStorage,File>();
+
+    /*package*/ FlowNodeCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cached value loaded by the given storage, or null.
+     */
+    /*package*/ synchronized Object get(FlowNodeStorage owner, String id) {
+        Entry e = entries.get(new Key(owner, id));
+        if (e==null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e.value;
+    }
+
+    /**
+     * Caches a value, evicting the least recently used entries as needed.
+     *
+     * @param weight
+     *      size of the persisted form of the value, in bytes.
+     */
+    /*package*/ synchronized void put(FlowNodeStorage owner, String id, Object value, long weight) {
+        weight = Math.max(weight, MIN_WEIGHT);
+        Entry old = entries.put(new Key(owner, id), new Entry(value, weight));
+        if (old!=null)
+            size -= old.weight;
+        size += weight;
+
+        Iterator<Entry> itr = entries.values().iterator();
+        while (size>capacity && itr.hasNext()) {
+            Entry e = itr.next();
+            if (e.value==value)     break;  // never evict what we just added
+            itr.remove();
+            size -= e.weight;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called when a storage is opened on the given directory.
+     * Anything cached for that directory was loaded by an earlier instance of the same build, which has since been unloaded.
+     */
+    /*package*/ synchronized void register(FlowNodeStorage owner, File dir) {
+        for (Map.Entry<FlowNodeStorage,File> e : dirs.entrySet()) {
+            if (e.getKey()!=owner && e.getValue().equals(dir))
+                invalidate(e.getKey());
+        }
+        dirs.put(owner, dir);
+    }
+
+    /**
+     * Drops everything loaded by the given storage, for example when its execution has completed.
+     */
+    /*package*/ synchronized void invalidate(FlowNodeStorage owner) {
+        int n = 0;
+        for (Iterator<Map.Entry<Key,Entry>> itr = entries.entrySet().iterator(); itr.hasNext();) {
+            Map.Entry<Key,Entry> e = itr.next();
+            if (e.getKey().owner==owner) {
+                itr.remove();
+                size -= e.getValue().weight;
+                n++;
+            }
+        }
+        if (n>0)
+            LOGGER.log(FINE, "Dropped {0} entries of {1}: {2}", new Object[] {n, dirs.get(owner), this});
+    }
+
+    /**
+     * Drops everything loaded by storages in the given directory or below, for example when a build is deleted.
+     */
+    public synchronized void invalidate(File dir) {
+        for (Map.Entry<FlowNodeStorage,File> e : dirs.entrySet()) {
+            for (File f=e.getValue(); f!=null; f=f.getParentFile()) {
+                if (f.equals(dir)) {
+                    invalidate(e.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Approximate number of bytes currently cached.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return "FlowNodeCache[entries="+getEntryCount()+",size="+getSize()+"/"+capacity
+                +",hits="+hits+",misses="+misses+",evictions="+evictions+"]";
+    }
+
+    public static FlowNodeCache get() {
+        return INSTANCE;
+    }
+
+    private static final class Key {
+        final FlowNodeStorage owner;
+        final String id;
+
+        Key(FlowNodeStorage owner, String id) {
+            this.owner = owner;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))    return false;
+            Key that = (Key) o;
+            return owner==that.owner && id.equals(that.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(owner)*31 + id.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long weight;
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Weight given to entries whose persisted form is unknown or tiny, to account for the per-entry overhead.
+     */
+    private static final long MIN_WEIGHT = 256;
+
+    private static final Logger LOGGER = Logger.getLogger(FlowNodeCache.class.getName());
+
+    /**
+     * Total size in bytes of the persisted form of the nodes kept in memory.
+     */
+    private static final FlowNodeCache INSTANCE = new FlowNodeCache(
+            Long.getLong(FlowNodeCache.class.getName()+".capacity", 32*1024*1024));
+}
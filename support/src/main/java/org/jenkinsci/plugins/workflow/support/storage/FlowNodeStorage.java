@@ -29,6 +29,7 @@ import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.graph.FlowActionStorage;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import java.io.IOException;
+import java.util.List;
 import javax.annotation.CheckForNull;
 
 /**
@@ -50,4 +51,23 @@ public abstract class FlowNodeStorage implements FlowActionStorage {
      */
     public abstract @CheckForNull FlowNode getNode(String id) throws IOException;
     public abstract void storeNode(FlowNode n) throws IOException;
+
+    /**
+     * Starts holding back {@link #storeNode(FlowNode)} and {@link #saveActions(FlowNode, List)} in memory
+     * until {@link #flush()}, so that nodes created in quick succession are persisted in one go,
+     * and repeated updates of the same node only once.
+     * Nodes held back must still be visible through {@link #getNode(String)} and {@link #loadActions(FlowNode)}.
+     */
+    public void startBatch() {}
+
+    /**
+     * Persists everything held back since {@link #startBatch()}, and goes back to writing through.
+     */
+    public void flush() throws IOException {}
+
+    /**
+     * Called once the owning {@link FlowExecution} has completed, so that the storage
+     * can reorganize what it has persisted. Nodes may still be read, and actions may still be saved, afterward.
+     */
+    public void onExecutionCompleted() throws IOException {}
 }
@@ -0,0 +1,674 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.core.JVM;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import hudson.Util;
+import hudson.model.Action;
+import hudson.util.RobustReflectionConverter;
+import hudson.util.XStream2;
+import org.jenkinsci.plugins.workflow.actions.FlowNodeAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static java.util.logging.Level.*;
+
+/**
+ * {@link FlowNodeStorage} that appends nodes and their action updates as records to a few segment files,
+ * instead of writing one file per node like {@link SimpleXStreamFlowNodeStorage} does.
+ *
+ * <p>
+ * Every record holds the complete XStream form of a node with its actions, so the last record of a given ID wins.
+ * The in-memory index from node ID to record location is rebuilt by scanning the segments when the storage is opened,
+ * and a record torn by a crash at the end of the last segment is discarded, as is a header torn when it was created.
+ * When the execution completes, live records are copied into a single new segment and the older ones are deleted.
+ *
+ * <p>
+ * Directories written by {@link SimpleXStreamFlowNodeStorage} remain readable: nodes not found in the segments
+ * are read from their {@code <id>.xml} file, and get folded into the segments upon compaction.
+ */
+public class SegmentedFlowNodeStorage extends FlowNodeStorage {
+    private final File dir;
+    private final FlowExecution exec;
+
+    /**
+     * Location of the latest record of every node, by node ID.
+     */
+    private final Map<String,Location> index = new HashMap<String,Location>();
+
+    /**
+     * Serial number of the segment that new records are appended to.
+     */
+    private int currentSegment;
+
+    /**
+     * Appends to {@link #currentSegment}. Opened lazily, so that just reading a completed build creates no files.
+     */
+    private DataOutputStream out;
+
+    /**
+     * Number of bytes in {@link #currentSegment}, including what's buffered in {@link #out}.
+     */
+    private long currentSize;
+
+    /**
+     * Number of records that have been superseded by later ones, which compaction would drop.
+     */
+    private int superseded;
+
+    /**
+     * Reads nodes written in the one-file-per-node layout, if this directory has any of those.
+     */
+    private SimpleXStreamFlowNodeStorage legacy;
+
+    /**
+     * Segment readers opened during the current (possibly recursive) {@link #load(String)},
+     * closed as soon as the outermost call returns.
+     */
+    private final Map<Integer,RandomAccessFile> readers = new HashMap<Integer,RandomAccessFile>();
+    private int readDepth;
+
+    /**
+     * Writes held back since {@link #startBatch()}: nodes to create, and nodes whose actions to update, by ID.
+     */
+    private final Map<String,Tag> pendingNodes = new LinkedHashMap<String,Tag>();
+    private final Map<String,Tag> pendingActions = new LinkedHashMap<String,Tag>();
+    private boolean batching;
+
+    public SegmentedFlowNodeStorage(FlowExecution exec, File dir) throws IOException {
+        this.exec = exec;
+        this.dir = dir;
+        dir.mkdirs();
+        FlowNodeCache.get().register(this, dir);
+
+        new File(dir, COMPACTION_FILE).delete();   // leftover from an interrupted compaction
+
+        SortedMap<Integer,File> segments = listSegments(dir);
+        long validLength = SEGMENT_HEADER_SIZE;
+        for (Map.Entry<Integer,File> e : segments.entrySet()) {
+            File f = e.getValue();
+            if (e.getKey().equals(segments.lastKey()) && f.length() < SEGMENT_HEADER_SIZE) {
+                // created right before a crash, so not even the header made it to the disk
+                LOGGER.log(WARNING, "Rewriting the incomplete header of {0}", f);
+                openSegment(f, false).close();
+                validLength = SEGMENT_HEADER_SIZE;
+                continue;
+            }
+            validLength = scan(e.getKey(), f);
+        }
+        if (!segments.isEmpty()) {
+            currentSegment = segments.lastKey();
+            currentSize = validLength;
+            File last = segments.get(currentSegment);
+            if (last.length() > validLength) {
+                LOGGER.log(WARNING, "Discarding {0} bytes of incomplete records at the end of {1}",
+                        new Object[] {last.length() - validLength, last});
+                truncate(last, validLength);
+            }
+        }
+
+        String[] xml = dir.list(LEGACY_FILTER);
+        if (xml!=null && xml.length>0)
+            legacy = new SimpleXStreamFlowNodeStorage(exec, dir);
+    }
+
+    /**
+     * Checks if the given directory has been written by this storage,
+     * in which case it must keep being accessed through it.
+     */
+    public static boolean isPresent(File dir) {
+        return !listSegments(dir).isEmpty();
+    }
+
+    @Override
+    public synchronized FlowNode getNode(String id) throws IOException {
+        Tag t = load(id);
+        return t!=null ? t.node : null;
+    }
+
+    @Override
+    public synchronized void storeNode(FlowNode n) throws IOException {
+        if (batching) {
+            if (!exists(n.getId()))
+                pendingNodes.put(n.getId(), new Tag(n, Collections.<Action>emptyList()));
+            return;
+        }
+        store(n);
+        if (out!=null)
+            out.flush();
+    }
+
+    private void store(FlowNode n) throws IOException {
+        // nodes referenced from n need to be persisted as well
+        LinkedList<FlowNode> queue = new LinkedList<FlowNode>();
+        queue.add(n);
+        while (!queue.isEmpty()) {
+            n = queue.removeFirst();
+            if (!index.containsKey(n.getId()) && !legacyExists(n.getId()))
+                append(new Tag(n, Collections.<Action>emptyList()), queue);
+        }
+    }
+
+    public synchronized List<Action> loadActions(FlowNode node) throws IOException {
+        Tag t = exists(node.getId()) ? load(node.getId()) : null;
+        if (t==null)
+            return new ArrayList<Action>(); // not yet saved
+        return Arrays.asList(t.actions);
+    }
+
+    /**
+     * Appends a new record for this one node, superseding the previous one.
+     */
+    public synchronized void saveActions(FlowNode node, List<Action> actions) throws IOException {
+        Tag t = new Tag(node, actions);
+        if (batching) {
+            pendingActions.put(node.getId(), t);
+            return;
+        }
+        append(t, null);
+        out.flush();
+    }
+
+    @Override
+    public synchronized void startBatch() {
+        batching = true;
+    }
+
+    /**
+     * Appends all the held back records, and flushes them to the segment at once.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        batching = false;
+        // action updates first, since they carry the node as well, and then store() finds it already there
+        List<FlowNode> referenced = new ArrayList<FlowNode>();
+        for (Iterator<Tag> itr = pendingActions.values().iterator(); itr.hasNext();) {
+            append(itr.next(), referenced);
+            itr.remove();
+        }
+        for (Iterator<Tag> itr = pendingNodes.values().iterator(); itr.hasNext();) {
+            store(itr.next().node);
+            itr.remove();
+        }
+        // nodes that the updated ones refer to, in case they have not been stored on their own
+        for (FlowNode n : referenced)
+            store(n);
+        if (out!=null)
+            out.flush();
+    }
+
+    /**
+     * Copies all the live records into a single new segment, then deletes the older segments
+     * as well as any nodes in the one-file-per-node layout.
+     */
+    @Override
+    public synchronized void onExecutionCompleted() throws IOException {
+        flush();
+
+        // nobody is going to look at this build as intensively as while it was running, so make room for others
+        FlowNodeCache.get().invalidate(this);
+
+        if (superseded==0 && legacy==null && listSegments(dir).size()<=1)
+            return; // already as compact as it gets
+
+        closeOutput();
+
+        Map<String,Location> compacted = new HashMap<String,Location>();
+        int target = currentSegment+1;
+        File tmp = new File(dir, COMPACTION_FILE);
+        DataOutputStream o = openSegment(tmp, false);
+        long size = SEGMENT_HEADER_SIZE;
+        readDepth++;
+        try {
+            for (Map.Entry<String,Location> e : index.entrySet()) {
+                Location l = writeRecord(o, target, size, e.getKey(), read(e.getValue()));
+                compacted.put(e.getKey(), l);
+                size = l.end();
+            }
+            if (legacy!=null) {
+                for (String name : dir.list(LEGACY_FILTER)) {
+                    String id = name.substring(0, name.length()-".xml".length());
+                    if (compacted.containsKey(id))  continue;
+                    FlowNode n = legacy.getNode(id);
+                    Location l = writeRecord(o, target, size, id, serialize(new Tag(n, legacy.loadActions(n)), null));
+                    compacted.put(id, l);
+                    size = l.end();
+                }
+            }
+        } finally {
+            o.close();
+            if (--readDepth==0)
+                closeReaders();
+        }
+
+        File dst = segmentFile(dir, target);
+        if (!tmp.renameTo(dst))
+            throw new IOException("Failed to rename "+tmp+" to "+dst);
+
+        // the new segment supersedes everything else, so from here on failures only leave garbage behind
+        for (Map.Entry<Integer,File> e : listSegments(dir).entrySet()) {
+            if (e.getKey()<target)
+                e.getValue().delete();
+        }
+        if (legacy!=null) {
+            for (String name : dir.list(LEGACY_FILTER))
+                new File(dir, name).delete();
+            legacy.onExecutionCompleted();
+            legacy = null;
+        }
+
+        index.clear();
+        index.putAll(compacted);
+        currentSegment = target;
+        currentSize = size;
+        superseded = 0;
+    }
+
+    private boolean exists(String id) {
+        return pending(id)!=null || index.containsKey(id) || legacyExists(id);
+    }
+
+    private boolean legacyExists(String id) {
+        return legacy!=null && new File(dir, id+".xml").exists();
+    }
+
+    private Tag pending(String id) {
+        Tag t = pendingActions.get(id);
+        return t!=null ? t : pendingNodes.get(id);
+    }
+
+    /**
+     * Loads the node and its actions, or returns null if no such node has been stored.
+     */
+    private Tag load(String id) throws IOException {
+        Tag t = pending(id);
+        if (t!=null)    return t;   // not even written yet?
+
+        FlowNodeCache cache = FlowNodeCache.get();
+        t = (Tag) cache.get(this, id);
+        if (t!=null)    return t;   // already loaded?
+
+        Location l = index.get(id);
+        if (l!=null) {
+            SegmentedFlowNodeStorage old = READING.get();
+            READING.set(this);
+            readDepth++;
+            try {
+                t = (Tag) XSTREAM.fromXML(new InputStreamReader(new ByteArrayInputStream(read(l)), "UTF-8"));
+            } catch (XStreamException e) {
+                throw new IOException("Failed to read FlowNode:id="+id, e);
+            } finally {
+                READING.set(old);
+                if (--readDepth==0)
+                    closeReaders();
+            }
+            try {
+                SimpleXStreamFlowNodeStorage.FlowNode$exec.set(t.node, exec);
+            } catch (IllegalAccessException e) {
+                throw (IllegalAccessError)new IllegalAccessError("Failed to set owner").initCause(e);
+            }
+            for (FlowNodeAction a : Util.filter(Arrays.asList(t.actions), FlowNodeAction.class))
+                a.onLoad(t.node);
+        } else
+        if (legacyExists(id)) {
+            FlowNode n = legacy.getNode(id);
+            t = new Tag(n, legacy.loadActions(n));
+        } else {
+            return null;
+        }
+
+        cache.put(this, id, t, l!=null ? l.length : 0);
+        return t;
+    }
+
+    private byte[] read(Location l) throws IOException {
+        if (l.segment==currentSegment && out!=null)
+            out.flush();
+
+        RandomAccessFile raf = readers.get(l.segment);
+        if (raf==null)
+            readers.put(l.segment, raf = new RandomAccessFile(segmentFile(dir, l.segment), "r"));
+        byte[] payload = new byte[l.length];
+        raf.seek(l.offset);
+        raf.readFully(payload);
+        return payload;
+    }
+
+    private void closeReaders() {
+        for (RandomAccessFile raf : readers.values()) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOGGER.log(FINE, "Failed to close segment of " + dir, e);
+            }
+        }
+        readers.clear();
+    }
+
+    private void append(Tag t, List<FlowNode> queue) throws IOException {
+        String id = t.node.getId();
+        byte[] payload = serialize(t, queue);
+
+        if (out!=null && currentSize>=SEGMENT_SIZE) {
+            closeOutput();
+            currentSegment++;
+        }
+        if (out==null) {
+            File f = segmentFile(dir, currentSegment);
+            boolean fresh = !f.exists();
+            out = openSegment(f, !fresh);
+            if (fresh)
+                currentSize = SEGMENT_HEADER_SIZE;
+        }
+
+        Location l = writeRecord(out, currentSegment, currentSize, id, payload);
+        currentSize = l.end();
+
+        if (index.put(id, l)!=null)
+            superseded++;
+        FlowNodeCache.get().put(this, id, t, l.length);
+    }
+
+    private void closeOutput() throws IOException {
+        if (out!=null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private byte[] serialize(Tag t, List<FlowNode> queue) throws IOException {
+        List<FlowNode> old = WRITING.get();
+        WRITING.set(queue);
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            Writer w = new OutputStreamWriter(buf, "UTF-8");
+            XSTREAM.toXML(t, w);
+            w.close();
+            return buf.toByteArray();
+        } catch (XStreamException e) {
+            throw new IOException("Failed to write FlowNode:id="+t.node.getId(), e);
+        } finally {
+            WRITING.set(old);
+        }
+    }
+
+    /**
+     * Reads all the records of a segment into {@link #index}.
+     *
+     * @return
+     *      the length of the segment up to the end of its last intact record.
+     */
+    private long scan(int segment, File f) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readLong()!=SEGMENT_HEADER)
+                throw new IOException("Invalid segment header: "+f);
+            short v = in.readShort();
+            if (v!=SEGMENT_VERSION)
+                throw new IOException("Unexpected segment version "+v+": "+f);
+
+            long pos = SEGMENT_HEADER_SIZE;
+            while (true) {
+                byte[] id, payload;
+                try {
+                    int length = in.readInt();
+                    id = new byte[in.readUnsignedShort()];
+                    in.readFully(id);
+                    if (length<0 || length>f.length())
+                        break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (in.readInt()!=checksum(id, payload))
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+
+                Location l = new Location(segment, pos + 4 + 2 + id.length, payload.length);
+                if (index.put(new String(id, "UTF-8"), l)!=null)
+                    superseded++;
+                pos = l.end();
+            }
+            return pos;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void truncate(File f, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static DataOutputStream openSegment(File f, boolean append) throws IOException {
+        DataOutputStream o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, append)));
+        if (!append) {
+            o.writeLong(SEGMENT_HEADER);
+            o.writeShort(SEGMENT_VERSION);
+            o.flush();  // so that a segment on disk always has its header, even if nothing else gets written
+        }
+        return o;
+    }
+
+    /**
+     * Writes one record, consisting of the payload length, the node ID, the payload, and the checksum of the latter two.
+     *
+     * @param start
+     *      offset in the segment at which the record is written.
+     * @return
+     *      where the payload of the record is.
+     */
+    private static Location writeRecord(DataOutputStream o, int segment, long start, String id, byte[] payload) throws IOException {
+        byte[] b = id.getBytes("UTF-8");
+        o.writeInt(payload.length);
+        o.writeShort(b.length);
+        o.write(b);
+        o.write(payload);
+        o.writeInt(checksum(b, payload));
+        return new Location(segment, start + 4 + 2 + b.length, payload.length);
+    }
+
+    private static int checksum(byte[] id, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(id);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static File segmentFile(File dir, int segment) {
+        return new File(dir, "nodes-"+segment+".seg");
+    }
+
+    private static SortedMap<Integer,File> listSegments(File dir) {
+        SortedMap<Integer,File> r = new TreeMap<Integer,File>();
+        String[] names = dir.list();
+        if (names!=null) {
+            for (String name : names) {
+                Matcher m = SEGMENT_NAME.matcher(name);
+                if (m.matches())
+                    r.put(Integer.parseInt(m.group(1)), new File(dir, name));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Where the latest record of a node is.
+     */
+    private static final class Location {
+        final int segment;
+        /**
+         * Offset of the payload from the start of the segment file.
+         */
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Offset right after the end of this record.
+         */
+        long end() {
+            return offset + length + 4;
+        }
+    }
+
+    /**
+     * To group node and their actions together into one object.
+     */
+    private static class Tag {
+        FlowNode node;
+        Action[] actions;
+
+        private Tag(FlowNode node, List<Action> actions) {
+            this.node = node;
+            this.actions = actions.toArray(new Action[actions.size()]);
+        }
+    }
+
+    /**
+     * {@link Converter} for FlowNodes so that we can persist references to other FlowNodes by their IDs.
+     */
+    private static class FlowNodeConverter implements Converter {
+        private final RobustReflectionConverter ref;
+        FlowNodeConverter(XStream2 owner) {
+            ref = new RobustReflectionConverter(owner.getMapper(),new JVM().bestReflectionProvider());
+        }
+
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            FlowNode n = (FlowNode)source;
+
+            if (context.get(ROOT)==null) {
+                context.put(ROOT,n);
+                ref.marshal(n, writer, context);
+            } else {
+                // this is a reference to another FlowNode, which needs to be persisted as well
+                List<FlowNode> queue = WRITING.get();
+                if (queue!=null)
+                    queue.add(n);
+                writer.setValue(n.getId());
+            }
+        }
+
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            if (context.get(ROOT)==null) {
+                context.put(ROOT,true);
+                return ref.unmarshal(reader, context);
+            } else {
+                // reference to another FlowNode
+                String id = reader.getValue();
+                try {
+                    Tag t = READING.get().load(id);
+                    if (t==null)
+                        throw new XStreamException("No such FlowNode:id="+id);
+                    return t.node;
+                } catch (IOException e) {
+                    throw new XStreamException("Failed to read FlowNode:id="+id,e);
+                }
+            }
+        }
+
+        public boolean canConvert(Class type) {
+            return FlowNode.class.isAssignableFrom(type);
+        }
+
+        private static final Object ROOT = "rootFlowNode";
+    }
+
+    private static final ThreadLocal<SegmentedFlowNodeStorage> READING = new ThreadLocal<SegmentedFlowNodeStorage>();
+    private static final ThreadLocal<List<FlowNode>> WRITING = new ThreadLocal<List<FlowNode>>();
+
+    public static XStream2 XSTREAM = new XStream2();
+
+    static {
+        XSTREAM.registerConverter(new FlowNodeConverter(XSTREAM));
+    }
+
+    /**
+     * Once a segment grows past this size, new records go to a new segment.
+     */
+    public static long SEGMENT_SIZE = 16*1024*1024;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("nodes-(\\d+)\\.seg");
+    private static final String COMPACTION_FILE = "nodes.compacting";
+
+    private static final FilenameFilter LEGACY_FILTER = new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+            return name.endsWith(".xml");
+        }
+    };
+
+    /*constant*/ static final long SEGMENT_HEADER = 0x576F726B466C6F77L;
+    /*constant*/ static final short SEGMENT_VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8 + 2;
+
+    private static final Logger LOGGER = Logger.getLogger(SegmentedFlowNodeStorage.class.getName());
+}
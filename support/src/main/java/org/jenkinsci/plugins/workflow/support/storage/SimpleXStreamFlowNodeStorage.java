@@ -42,11 +42,11 @@ import hudson.util.XStream2;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -60,32 +60,36 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
     private final File dir;
     private final FlowExecution exec;
 
-    private transient SoftReference<PersistenceContext> context;
+    /**
+     * Writes held back since {@link #startBatch()}: nodes to create, and nodes whose actions to update, by ID.
+     */
+    private final Map<String,Tag> pendingNodes = new LinkedHashMap<String,Tag>();
+    private final Map<String,Tag> pendingActions = new LinkedHashMap<String,Tag>();
+    private boolean batching;
 
     public SimpleXStreamFlowNodeStorage(FlowExecution exec, File dir) {
         this.exec = exec;
         this.dir = dir;
         dir.mkdirs();
+        FlowNodeCache.get().register(this, dir);
     }
 
     private PersistenceContext get() {
-        PersistenceContext c=null;
-        if (context!=null)
-            c = context.get();
-        if (c!=null)
-            return c;
-
-        context = new SoftReference<PersistenceContext>(c=new PersistenceContext());
-        return c;
+        return new PersistenceContext();
     }
 
     @Override
-    public FlowNode getNode(String id) throws IOException {
+    public synchronized FlowNode getNode(String id) throws IOException {
         return get().loadOuter(id).node;
     }
 
     @Override
-    public void storeNode(FlowNode n) throws IOException {
+    public synchronized void storeNode(FlowNode n) throws IOException {
+        if (batching) {
+            if (pending(n.getId())==null && !getNodeFile(n.getId()).exists())
+                pendingNodes.put(n.getId(), new Tag(n,new ArrayList<Action>()));
+            return;
+        }
         get().store(n);
     }
 
@@ -93,8 +97,8 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
         return new XmlFile(XSTREAM, new File(dir,id+".xml"));
     }
 
-    public List<Action> loadActions(FlowNode node) throws IOException {
-        if (!getNodeFile(node.getId()).exists())
+    public synchronized List<Action> loadActions(FlowNode node) throws IOException {
+        if (pending(node.getId())==null && !getNodeFile(node.getId()).exists())
             return new ArrayList<Action>(); // not yet saved
         return Arrays.asList(get().loadOuter(node.getId()).actions);
     }
@@ -102,9 +106,52 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
     /**
      * Just stores this one node
      */
-    public void saveActions(FlowNode node, List<Action> actions) throws IOException {
-        get().references.put(node.getId(),new Tag(node,actions));
-        getNodeFile(node.getId()).write(new Tag(node,actions));
+    public synchronized void saveActions(FlowNode node, List<Action> actions) throws IOException {
+        Tag t = new Tag(node,actions);
+        if (batching) {
+            pendingActions.put(node.getId(), t);
+            return;
+        }
+        write(t);
+    }
+
+    private void write(Tag t) throws IOException {
+        XmlFile f = getNodeFile(t.node.getId());
+        f.write(t);
+        FlowNodeCache.get().put(this, t.node.getId(), t, f.getFile().length());
+    }
+
+    private Tag pending(String id) {
+        Tag t = pendingActions.get(id);
+        return t!=null ? t : pendingNodes.get(id);
+    }
+
+    @Override
+    public synchronized void startBatch() {
+        batching = true;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        batching = false;
+        // action updates first, since they carry the node as well, and then store() finds the file already there
+        for (Iterator<Tag> itr = pendingActions.values().iterator(); itr.hasNext();) {
+            get().write(itr.next());
+            itr.remove();
+        }
+        for (Iterator<Tag> itr = pendingNodes.values().iterator(); itr.hasNext();) {
+            get().store(itr.next().node);
+            itr.remove();
+        }
+    }
+
+    /**
+     * Nobody is going to look at this build as intensively as while it was running, so make room for others.
+     */
+    @Override
+    public synchronized void onExecutionCompleted() throws IOException {
+        flush();
+        FlowNodeCache.get().invalidate(this);
     }
 
     /**
@@ -173,12 +220,10 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
 
     /**
      * If we see a reference to other {@link FlowNode}s while we are reading, we need to persist them as well.
-     * Likewise, as we read nodes, we need to remember its ID/FlowNode mapping to fix up all the references.
+     * Likewise, as we read nodes, we need to remember its ID/FlowNode mapping to fix up all the references,
+     * which is what {@link FlowNodeCache} does for us.
      */
     private class PersistenceContext {
-        // used while reading
-        private final Map<String,Tag> references = new HashMap<String, Tag>();
-
         // used while writing
         private final List<FlowNode> queue = new LinkedList<FlowNode>();
 
@@ -199,6 +244,21 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
             }
         }
 
+        /**
+         * Writes the node with its actions, and then whatever it refers to that has not been stored yet.
+         */
+        private void write(Tag t) throws IOException {
+            PersistenceContext old = CONTEXT.get();
+            CONTEXT.set(this);
+            try {
+                SimpleXStreamFlowNodeStorage.this.write(t);
+            } finally {
+                CONTEXT.set(old);
+            }
+            while (!queue.isEmpty())
+                store(queue.remove(0));
+        }
+
         private Tag loadOuter(String id) throws IOException {
             PersistenceContext old = CONTEXT.get();
             CONTEXT.set(this);
@@ -210,11 +270,16 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
         }
 
         private Tag loadInner(String id) throws IOException {
-            Tag v = references.get(id);
+            Tag v = pending(id);
+            if (v!=null)    return v;   // not even written yet?
+
+            FlowNodeCache cache = FlowNodeCache.get();
+            v = (Tag) cache.get(SimpleXStreamFlowNodeStorage.this, id);
             if (v!=null)    return v;   // already loaded?
 
             // else load it now
-            v = (Tag)getNodeFile(id).read();
+            XmlFile f = getNodeFile(id);
+            v = (Tag)f.read();
             try {
                 FlowNode$exec.set(v.node,exec);
             } catch (IllegalAccessException e) {
@@ -222,7 +287,7 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
             }
             for (FlowNodeAction a : Util.filter(Arrays.asList(v.actions), FlowNodeAction.class))
                 a.onLoad(v.node);
-            references.put(id,v);
+            cache.put(SimpleXStreamFlowNodeStorage.this, id, v, f.getFile().length());
 
             return v;
         }
@@ -232,7 +297,7 @@ public class SimpleXStreamFlowNodeStorage extends FlowNodeStorage {
 
     public static XStream2 XSTREAM = new XStream2();
 
-    private static final Field FlowNode$exec;
+    /*package*/ static final Field FlowNode$exec;
 
     static {
         XSTREAM.registerConverter(new FlowNodeConverter(XSTREAM));
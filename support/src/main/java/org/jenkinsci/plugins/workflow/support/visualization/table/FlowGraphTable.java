@@ -58,6 +58,10 @@ public class FlowGraphTable {
         } else {
             this.rows = Collections.emptyList();
         }
+        buildColumns();
+    }
+
+    /*package*/ void buildColumns() {
         this.columns = Collections.unmodifiableList(FlowNodeViewColumnDescriptor.getDefaultInstances());
     }
 
@@ -182,7 +186,7 @@ public class FlowGraphTable {
     /**
      * Order tree into a sequence.
      */
-    private List<Row> order(Row r) {
+    /*package*/ List<Row> order(Row r) {
         List<Row> rows = new ArrayList<Row>();
 
         Stack<Row> ancestors = new Stack<Row>();
@@ -208,14 +212,14 @@ public class FlowGraphTable {
     }
 
     public class Row {
-        private final FlowNode node;
+        /*package*/ final FlowNode node;
 
         /**
          * We collapse {@link BlockStartNode} and {@link BlockEndNode} into one row.
          * When it happens, this field refers to {@link BlockEndNode} while
          * {@link #node} refers to {@link BlockStartNode}.
          */
-        private BlockEndNode endNode;
+        /*package*/ BlockEndNode endNode;
 
         // reverse edges of node.parents, which forms DAG
         private Row firstGraphChild;
@@ -224,10 +228,15 @@ public class FlowGraphTable {
         // tree view
         private Row firstTreeChild;
         private Row nextTreeSibling;
+        /**
+         * Last row known to be in the chain of tree siblings that starts here,
+         * so that appending to the chain does not walk it from the start every time.
+         */
+        private Row lastTreeSibling;
 
-        private int treeDepth = -1;
+        /*package*/ int treeDepth = -1;
 
-        private Row(FlowNode node) {
+        /*package*/ Row(FlowNode node) {
             this.node = node;
         }
 
@@ -279,10 +288,11 @@ public class FlowGraphTable {
         void addTreeSibling(Row r) {
             if (r.isEnd())  return;
 
-            Row s = this;
+            Row s = lastTreeSibling!=null ? lastTreeSibling : this;
             while (s.nextTreeSibling !=null)
                 s = s.nextTreeSibling;
             s.nextTreeSibling = r;
+            lastTreeSibling = r;
         }
     }
 }
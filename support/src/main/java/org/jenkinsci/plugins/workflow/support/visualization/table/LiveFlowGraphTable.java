@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.visualization.table;
+
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.FlowEndNode;
+import org.jenkinsci.plugins.workflow.graph.FlowGraphWalker;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link FlowGraphTable} of a running flow that is kept up to date as new nodes get added,
+ * instead of walking the whole graph every time it is looked at.
+ *
+ * <p>
+ * {@link #build()} walks the graph once and then listens to the execution.
+ * Every change bumps {@link #getVersion() the version}, so that clients can get
+ * {@link #getRows() the list of rows}, which is only recomputed when something has changed,
+ * or ask for {@link #getChangesSince(int) what has changed}.
+ *
+ * <p>
+ * New nodes are only queued by {@link #onNewHead(FlowNode)}, and added to the rows whenever the lock of the table is free,
+ * so that the thread running the flow is never held up by the first walk or by somebody looking at the table.
+ *
+ * <p>
+ * Rows of branches are ordered by when they started, rather than by how {@link FlowGraphWalker} reaches them.
+ * Once the flow ends, this stops listening, lets go of its rows and behaves like a plain {@link FlowGraphTable}.
+ *
+ * <p>
+ * The {@link Row}s are live: the same instances are handed out again and again,
+ * and they keep changing as the flow runs, such as when the block of a row ends.
+ */
+public class LiveFlowGraphTable extends FlowGraphTable implements GraphListener {
+    private final FlowExecution execution;
+
+    /**
+     * Guards everything below.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Nodes reported by the execution but not yet added.
+     */
+    private final Queue<FlowNode> incoming = new ConcurrentLinkedQueue<FlowNode>();
+
+    /**
+     * Rows by the ID of their node, including those of {@link BlockEndNode}s, which do not appear in the tree.
+     */
+    private final Map<String,Row> rows = new HashMap<String,Row>();
+    private Row firstRow;
+
+    /**
+     * Rows added or updated, in the order it happened. The version is the size of this list.
+     */
+    private final List<Row> changes = new ArrayList<Row>();
+
+    private List<Row> snapshot;
+    private int snapshotVersion = -1;
+
+    private boolean listening;
+    private boolean ended;
+
+    public LiveFlowGraphTable(FlowExecution execution) {
+        super(execution);
+        this.execution = execution;
+    }
+
+    /**
+     * Starts listening to the execution, and adds the nodes it has so far.
+     * Calling this again does nothing, other than waiting for the first call to finish.
+     */
+    @Override
+    public void build() {
+        lock.lock();
+        try {
+            if (listening)
+                return;
+            listening = true;
+            buildColumns();
+            execution.addListener(this);
+
+            FlowGraphWalker walker = new FlowGraphWalker();
+            walker.addHeads(execution.getCurrentHeads());
+            FlowNode n;
+            while ((n=walker.next())!=null) {
+                add(n);
+            }
+            drain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the node, and adds it right away unless somebody else is using the table.
+     */
+    @Override
+    public void onNewHead(FlowNode node) {
+        if (node instanceof FlowEndNode)
+            execution.removeListener(this);
+        incoming.add(node);
+        if (lock.tryLock()) {
+            try {
+                drain();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds the queued nodes.
+     */
+    private void drain() {
+        assert lock.isHeldByCurrentThread();
+        FlowNode n;
+        while ((n=incoming.poll())!=null) {
+            if (ended)
+                continue;
+            if (n instanceof FlowEndNode) {
+                // nobody should be using this anymore, and if somebody does, they get the whole graph built from scratch
+                ended = true;
+                rows.clear();
+                changes.clear();
+                firstRow = null;
+                snapshot = null;
+                continue;
+            }
+            add(n);
+        }
+    }
+
+    /**
+     * Adds a node to the tree, after its parents if they are not there yet.
+     */
+    private void add(FlowNode node) {
+        Stack<FlowNode> q = new Stack<FlowNode>();
+        q.push(node);
+        while (!q.isEmpty()) {
+            FlowNode n = q.peek();
+            if (rows.containsKey(n.getId())) {
+                q.pop();
+                continue;
+            }
+            boolean ready = true;
+            for (FlowNode p : n.getParents()) {
+                if (!rows.containsKey(p.getId())) {
+                    q.push(p);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                q.pop();
+                insert(n);
+            }
+        }
+    }
+
+    /**
+     * Does what {@link #build()} of {@link FlowGraphTable} does, one node at a time.
+     */
+    private void insert(FlowNode n) {
+        Row r = new Row(n);
+        rows.put(n.getId(), r);
+
+        if (r.isEnd()) {
+            // collapsed into the row of the start node
+            Row sr = rows.get(((BlockEndNode) n).getStartNode().getId());
+            if (sr!=null) {
+                sr.endNode = (BlockEndNode) n;
+                changes.add(sr);
+            }
+            return;
+        }
+
+        if (n.getParents().isEmpty()) {
+            if (firstRow==null) {
+                firstRow = r;
+                r.treeDepth = 0;
+            } else {
+                // in an unlikely case when we find multiple head nodes, treat them all as siblings
+                firstRow.addTreeSibling(r);
+                r.treeDepth = 0;
+            }
+        }
+        for (FlowNode p : n.getParents()) {
+            Row pr = rows.get(p.getId());
+            if (pr.isStart()) {
+                pr.addTreeChild(r);
+                r.treeDepth = pr.treeDepth+1;
+            } else if (pr.isEnd()) {
+                // what follows a block is a sibling of the whole block
+                Row sr = rows.get(((BlockEndNode) pr.node).getStartNode().getId());
+                sr.addTreeSibling(r);
+                r.treeDepth = sr.treeDepth;
+            } else {
+                pr.addTreeSibling(r);
+                r.treeDepth = pr.treeDepth;
+            }
+        }
+        changes.add(r);
+    }
+
+    /**
+     * Number of changes so far.
+     */
+    public int getVersion() {
+        lock.lock();
+        try {
+            drain();
+            return changes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rows that have been added or updated since the given version, oldest first,
+     * possibly more than once if they have been updated repeatedly.
+     *
+     * @return
+     *      null if that cannot be told, in which case the client should start over from {@link #getRows()}.
+     */
+    public @CheckForNull List<Row> getChangesSince(int version) {
+        lock.lock();
+        try {
+            drain();
+            if (ended || version<0 || version>changes.size())
+                return null;
+            return Collections.unmodifiableList(new ArrayList<Row>(changes.subList(version, changes.size())));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rows in the order to show them, as of now.
+     * The list does not change once returned, but the rows in it do, see above.
+     */
+    @Override
+    public List<Row> getRows() {
+        lock.lock();
+        try {
+            drain();
+            if (ended) {
+                if (super.getRows()==null)
+                    super.build();
+                return super.getRows();
+            }
+            if (snapshotVersion!=changes.size()) {
+                snapshot = firstRow==null ? Collections.<Row>emptyList() : Collections.unmodifiableList(order(firstRow));
+                snapshotVersion = changes.size();
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.slaves.DumbSlave;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class DefaultStepContextTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    /**
+     * What is derived from the computer gets looked up again once its channel changes.
+     */
+    @Test public void channelChange() throws Exception {
+        DumbSlave s = r.createOnlineSlave();
+        Context c = new Context(s.getNodeName());
+        Computer c1 = c.get(Computer.class);
+        assertSame(s.toComputer(), c1);
+        assertSame(s, c.get(Node.class));
+        Launcher l1 = c.get(Launcher.class);
+        assertNotNull(l1);
+        assertSame(l1, c.get(Launcher.class));
+
+        // reconnected: same computer, new channel
+        c1.disconnect(null).get();
+        c1.connect(false).get();
+        assertNotNull(c1.getChannel());
+        Launcher l2 = c.get(Launcher.class);
+        assertNotSame(l1, l2);
+        assertSame(c1, c.get(Computer.class));
+        assertSame(s, c.get(Node.class));
+
+        // removed and added back: new computer
+        r.jenkins.removeNode(s);
+        r.jenkins.addNode(s);
+        Computer c2 = s.toComputer();
+        c2.connect(false).get();
+        assertNotSame(c1, c2);
+        assertSame(c2, c.get(Computer.class));
+        assertNotSame(l2, c.get(Launcher.class));
+    }
+
+    /**
+     * Looks up the computer by name, as the context variable of a step running on a node would give it.
+     */
+    private static final class Context extends DefaultStepContext {
+        private final String computer;
+
+        Context(String computer) {
+            this.computer = computer;
+        }
+
+        @Override protected <T> T doGet(Class<T> key) {
+            if (key == Computer.class) {
+                return key.cast(Jenkins.getInstance().getComputer(computer));
+            } else if (key == TaskListener.class) {
+                return key.cast(TaskListener.NULL);
+            }
+            return null;
+        }
+
+        @Override protected FlowExecution getExecution() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override protected FlowNode getNode() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override public void onSuccess(Object result) {}
+        @Override public void onFailure(Throwable t) {}
+        @Override public boolean isReady() {
+            return true;
+        }
+        @Override public ListenableFuture<Void> saveState() {
+            throw new UnsupportedOperationException();
+        }
+        @Override public Object getGlobalVariable(String name) {
+            return null;
+        }
+        @Override public void setGlobalVariable(String name, Object v) {}
+        @Override public void setResult(Result r) {}
+        @Override public void invokeBodyLater(FutureCallback<Object> callback, Object... contextOverrides) {}
+        @Override public boolean equals(Object o) {
+            return o == this;
+        }
+        @Override public int hashCode() {
+            return System.identityHashCode(this);
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.workflow.support.actions;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RunLogStoreTest extends Assert {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final List<File> dirs = new ArrayList<File>();
+
+    @After public void closeStores() {
+        RunLogStore.close(tmp.getRoot());
+        for (File dir : dirs)
+            RunLogStore.close(dir);
+    }
+
+    @Test
+    public void truncatedTailIsCutOffBeforeAppending() throws Exception {
+        File dir = tmp.getRoot();
+        append(RunLogStore.of(dir), "1", "hello ");
+        RunLogStore.close(dir);
+        long indexLength = new File(dir, RunLogStore.INDEX).length();
+
+        // a crash after writing a chunk, and only part of its index record
+        FileOutputStream data = new FileOutputStream(new File(dir, RunLogStore.DATA), true);
+        data.write("lost".getBytes("UTF-8"));
+        data.close();
+        DataOutputStream index = new DataOutputStream(new FileOutputStream(new File(dir, RunLogStore.INDEX), true));
+        index.writeUTF("2");
+        index.writeLong(6);
+        index.close();
+
+        RunLogStore s = RunLogStore.of(dir);
+        assertEquals(indexLength, new File(dir, RunLogStore.INDEX).length());
+        assertEquals(6, new File(dir, RunLogStore.DATA).length());
+        append(s, "2", "world");
+        append(s, "1", "again");
+        RunLogStore.close(dir);
+
+        s = reload(dir);
+        assertEquals("hello again", read(s, "1", 0));
+        assertEquals("world", read(s, "2", 0));
+        assertEquals(16, new File(dir, RunLogStore.DATA).length());
+    }
+
+    @Test
+    public void readFromOffsetAcrossChunks() throws Exception {
+        File dir = tmp.getRoot();
+        RunLogStore s = RunLogStore.of(dir);
+        append(s, "1", "abc");
+        append(s, "2", "xyz");
+        append(s, "1", "def");
+        append(s, "2", "uvw");
+        append(s, "1", "ghi");
+        RunLogStore.close(dir);
+
+        s = reload(dir);
+        assertEquals(9, s.open("1").length());
+        assertEquals("abcdefghi", read(s, "1", 0));
+        assertEquals("efghi", read(s, "1", 4));
+        assertEquals("", read(s, "1", 9));
+        assertEquals("xyzuvw", read(s, "2", 0));
+        assertEquals(0, s.open("3").length());
+    }
+
+    @Test
+    public void indexOfCompletedRunIsCached() throws Exception {
+        File dir = tmp.getRoot();
+        append(RunLogStore.of(dir), "1", "hello");
+        RunLogStore.close(dir);
+
+        RunLogStore s = RunLogStore.forReading(dir);
+        assertSame(s, RunLogStore.forReading(dir));
+
+        // the run got deleted
+        assertTrue(new File(dir, RunLogStore.INDEX).delete());
+        assertTrue(new File(dir, RunLogStore.DATA).delete());
+        assertNotSame(s, RunLogStore.forReading(dir));
+        assertEquals("", read(RunLogStore.forReading(dir), "1", 0));
+    }
+
+    @Test
+    public void writesAreBuffered() throws Exception {
+        File dir = tmp.getRoot();
+        File data = new File(dir, RunLogStore.DATA);
+        RunLogStore s = RunLogStore.of(dir);
+        append(s, "1", "hello");
+        append(s, "2", "world");
+        assertFalse(data.exists());
+        assertEquals(0, s.getOpenFileCount());
+
+        s.flush();
+        assertEquals(10, data.length());
+        assertEquals(2, s.getOpenFileCount());
+
+        // writes out without being asked to once the buffer is full
+        append(s, "1", new String(new char[10000]).replace('\0', 'x'));
+        assertEquals(10010, data.length());
+        assertEquals("world", read(reload(dir), "2", 0));
+    }
+
+    @Test
+    public void idleStoreClosesFiles() throws Exception {
+        File dir = tmp.getRoot();
+        RunLogStore s = RunLogStore.of(dir);
+        append(s, "1", "hello");
+        s.flush();
+        assertEquals(2, s.getOpenFileCount());
+
+        long timeout = RunLogStore.IDLE_TIMEOUT;
+        RunLogStore.IDLE_TIMEOUT = 0;
+        try {
+            Thread.sleep(10);
+            new RunLogStore.Flusher().run();
+        } finally {
+            RunLogStore.IDLE_TIMEOUT = timeout;
+        }
+        assertEquals(0, s.getOpenFileCount());
+        assertSame(s, RunLogStore.get(dir));
+
+        append(s, "1", " again");
+        assertEquals("hello again", read(s, "1", 0));
+        assertEquals(2, s.getOpenFileCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedStoreIsEvicted() throws Exception {
+        assertEquals(0, RunLogStore.getTotalOpenFileCount());
+        int max = RunLogStore.MAX_OPEN;
+        RunLogStore.MAX_OPEN = 2;
+        try {
+            RunLogStore a = RunLogStore.of(newDir());
+            RunLogStore b = RunLogStore.of(newDir());
+            RunLogStore c = RunLogStore.of(newDir());
+            append(a, "1", "a");
+            a.flush();
+            Thread.sleep(10);
+            append(b, "1", "b");
+            b.flush();
+            Thread.sleep(10);
+            append(a, "1", "a");    // now b is the least recently used
+            a.flush();
+            Thread.sleep(10);
+            assertEquals(4, RunLogStore.getTotalOpenFileCount());
+
+            append(c, "1", "c");
+            c.flush();
+            assertEquals(2, a.getOpenFileCount());
+            assertEquals(0, b.getOpenFileCount());
+            assertEquals(2, c.getOpenFileCount());
+            assertEquals(4, RunLogStore.getTotalOpenFileCount());
+            assertEquals("b", read(b, "1", 0));
+        } finally {
+            RunLogStore.MAX_OPEN = max;
+        }
+    }
+
+    @Test
+    public void writeAfterCloseRegistersAgain() throws Exception {
+        File dir = tmp.getRoot();
+        RunLogStore s = RunLogStore.of(dir);
+        append(s, "1", "hello");
+        RunLogStore.close(dir);
+        assertNull(RunLogStore.get(dir));
+        assertEquals(0, s.getOpenFileCount());
+
+        // a step still writing to the stream it opened before the run completed
+        append(s, "1", " again");
+        assertSame(s, RunLogStore.get(dir));
+        assertSame(s, RunLogStore.of(dir));
+        RunLogStore.close(dir);
+        assertEquals("hello again", read(reload(dir), "1", 0));
+    }
+
+    @Test
+    public void closeAllWritesOut() throws Exception {
+        File dir = tmp.getRoot();
+        RunLogStore s = RunLogStore.of(dir);
+        append(s, "1", "hello");
+        RunLogStore.closeAll();
+        assertEquals(0, s.getOpenFileCount());
+        assertEquals("hello", read(reload(dir), "1", 0));
+    }
+
+    private File newDir() throws Exception {
+        File dir = tmp.newFolder("run"+dirs.size());
+        dirs.add(dir);
+        return dir;
+    }
+
+    private static void append(RunLogStore s, String id, String text) throws Exception {
+        byte[] b = text.getBytes("UTF-8");
+        s.append(id, b, 0, b.length);
+    }
+
+    private static String read(RunLogStore s, String id, long offset) throws Exception {
+        InputStream in = s.open(id).newInputStream();
+        try {
+            assertEquals(offset, in.skip(offset));
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads the store from disk as if Jenkins had been restarted.
+     */
+    private static RunLogStore reload(File dir) throws Exception {
+        return new RunLogStore(dir);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.pickles;
+
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class TryRepeatedlyTest {
+
+    @Rule public JenkinsRule r = new JenkinsRule();
+
+    /**
+     * A node coming online while an attempt is in progress gets another attempt right after it,
+     * not at the next poll.
+     */
+    @Test public void nodeComesOnlineDuringAttempt() throws Exception {
+        final Computer c = r.jenkins.toComputer();
+        final CountDownLatch online = new CountDownLatch(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        TryRepeatedly<String> t = new TryRepeatedly<String>(c.getName()) {
+            @Override protected String tryResolve() throws Exception {
+                if (attempts.incrementAndGet()==1) {
+                    // too late for this attempt to notice
+                    new NodeRehydrationListener().onOnline(c, TaskListener.NULL);
+                    online.countDown();
+                    return null;
+                }
+                return "resolved";
+            }
+        };
+        assertTrue(online.await(10, TimeUnit.SECONDS));
+        assertEquals("resolved", t.get(10, TimeUnit.SECONDS));    // well before FALLBACK_SECONDS
+        assertEquals(2, attempts.get());
+        assertEquals(0, NodeRehydrationListener.getPendingCounts().size());
+    }
+
+}
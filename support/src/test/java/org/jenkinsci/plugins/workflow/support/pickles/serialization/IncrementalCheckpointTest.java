@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.pickles.serialization;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+public class IncrementalCheckpointTest extends Assert {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Random r = new Random(1);
+
+    @Test
+    public void deltaIsSmallAndRestorable() throws Exception {
+        File f = new File(tmp.getRoot(), "program.dat");
+        File delta = IncrementalCheckpoint.getDeltaFile(f);
+        IncrementalCheckpoint c = new IncrementalCheckpoint(f);
+
+        byte[] p = new byte[1000000];
+        r.nextBytes(p);
+        c.write(p);
+        assertFalse(delta.exists());
+
+        p = insert(p, p.length/3, 100);
+        p[p.length/2] ^= 1;
+        c.write(p);
+        assertTrue(delta.exists());
+        assertTrue(delta.length() < p.length/20);
+        assertEquals(1000000, f.length());
+
+        IncrementalCheckpoint.restore(f);
+        assertFalse(delta.exists());
+        assertArrayEquals(p, FileUtils.readFileToByteArray(f));
+    }
+
+    @Test
+    public void unrelatedStateIsWrittenInFull() throws Exception {
+        File f = new File(tmp.getRoot(), "program.dat");
+        IncrementalCheckpoint c = new IncrementalCheckpoint(f);
+
+        byte[] p = new byte[100000];
+        r.nextBytes(p);
+        c.write(p);
+        r.nextBytes(p);
+        c.write(p);
+        assertFalse(IncrementalCheckpoint.getDeltaFile(f).exists());
+        assertArrayEquals(p, FileUtils.readFileToByteArray(f));
+    }
+
+    /**
+     * A delta left over from before the base was rewritten must not be applied.
+     */
+    @Test
+    public void staleDeltaIsIgnored() throws Exception {
+        File f = new File(tmp.getRoot(), "program.dat");
+        File delta = IncrementalCheckpoint.getDeltaFile(f);
+        IncrementalCheckpoint c = new IncrementalCheckpoint(f);
+
+        byte[] p = new byte[100000];
+        r.nextBytes(p);
+        c.write(p);
+        c.write(insert(p, 10, 10));
+        File stale = new File(tmp.getRoot(), "stale");
+        FileUtils.copyFile(delta, stale);
+
+        r.nextBytes(p);
+        c.write(p);
+        FileUtils.copyFile(stale, delta);
+
+        IncrementalCheckpoint.restore(f);
+        assertArrayEquals(p, FileUtils.readFileToByteArray(f));
+    }
+
+    private byte[] insert(byte[] p, int at, int length) {
+        byte[] q = new byte[p.length+length];
+        System.arraycopy(p, 0, q, 0, at);
+        for (int i=0; i<length; i++)
+            q[at+i] = (byte) r.nextInt();
+        System.arraycopy(p, at, q, at+length, p.length-at);
+        return q;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013-2014, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.workflow.support.storage;
+
+import hudson.model.Action;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+public class FlowNodeCacheTest extends Assert {
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        FlowNodeCache c = new FlowNodeCache(3000);
+        FlowNodeStorage s = new DummyStorage();
+        c.put(s, "1", "one", 1000);
+        c.put(s, "2", "two", 1000);
+        c.put(s, "3", "three", 1000);
+        assertEquals("one", c.get(s, "1"));  // now 2 is the eldest
+        c.put(s, "4", "four", 1000);
+
+        assertNull(c.get(s, "2"));
+        assertEquals("one", c.get(s, "1"));
+        assertEquals("three", c.get(s, "3"));
+        assertEquals("four", c.get(s, "4"));
+        assertEquals(1, c.getEvictionCount());
+        assertEquals(3000, c.getSize());
+    }
+
+    @Test
+    public void oversizedEntryIsStillKept() {
+        FlowNodeCache c = new FlowNodeCache(1000);
+        FlowNodeStorage s = new DummyStorage();
+        c.put(s, "1", "one", 500);
+        c.put(s, "2", "two", 5000);
+        assertNull(c.get(s, "1"));
+        assertEquals("two", c.get(s, "2"));
+    }
+
+    @Test
+    public void invalidateByOwner() {
+        FlowNodeCache c = new FlowNodeCache(10000);
+        FlowNodeStorage s1 = new DummyStorage();
+        FlowNodeStorage s2 = new DummyStorage();
+        c.put(s1, "1", "a", 1000);
+        c.put(s2, "1", "b", 1000);
+        c.invalidate(s1);
+
+        assertNull(c.get(s1, "1"));
+        assertEquals("b", c.get(s2, "1"));
+        assertEquals(1, c.getEntryCount());
+        assertEquals(1000, c.getSize());
+        assertEquals(1, c.getHitCount());
+        assertEquals(1, c.getMissCount());
+    }
+
+    @Test
+    public void invalidateByDirectory() {
+        FlowNodeCache c = new FlowNodeCache(10000);
+        FlowNodeStorage s1 = new DummyStorage();
+        FlowNodeStorage s2 = new DummyStorage();
+        c.register(s1, new File("builds/1/workflow"));
+        c.register(s2, new File("builds/2/workflow"));
+        c.put(s1, "1", "a", 1000);
+        c.put(s2, "1", "b", 1000);
+        c.invalidate(new File("builds/1"));
+
+        assertNull(c.get(s1, "1"));
+        assertEquals("b", c.get(s2, "1"));
+    }
+
+    @Test
+    public void reloadingDropsEntriesOfEarlierInstance() {
+        FlowNodeCache c = new FlowNodeCache(10000);
+        FlowNodeStorage s1 = new DummyStorage();
+        c.register(s1, new File("builds/1/workflow"));
+        c.put(s1, "1", "a", 1000);
+
+        FlowNodeStorage s2 = new DummyStorage();
+        c.register(s2, new File("builds/1/workflow"));
+        assertNull(c.get(s1, "1"));
+        assertEquals(0, c.getEntryCount());
+    }
+
+    private static class DummyStorage extends FlowNodeStorage {
+        @Override public FlowNode getNode(String id) {
+            return null;
+        }
+        @Override public void storeNode(FlowNode n) {
+        }
+        @Override public List<Action> loadActions(FlowNode node) {
+            return null;
+        }
+        @Override public void saveActions(FlowNode node, List<Action> actions) {
+        }
+    }
+}